@@ -0,0 +1,21 @@
+package org.rv.picmgr2.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the command line options, adding the GC profiler so that
+ * each throughput comes with its allocation rate.
+ */
+public class BenchMain {
+
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+    if (!jmhArgs.contains("gc")) {
+      jmhArgs.add("-prof");
+      jmhArgs.add("gc");
+    }
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[jmhArgs.size()]));
+  }
+}
@@ -0,0 +1,80 @@
+package org.rv.picmgr2.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rv.picmgr2.DestinationIndex;
+
+/**
+ * The lookups of existing files in the destination, which replaced the
+ * FileUtil.existingFiles scan: name lookups for files already imported and
+ * new ones, and the opening of the index of an unchanged tree from its
+ * persisted form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DestinationIndexBenchmark {
+
+  private static final int FILES_PER_FOLDER = 250;
+
+  @Param({ "10000" })
+  public int files;
+
+  private Path root;
+  private DestinationIndex index;
+  private String[] names;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    root = Samples.tempDir();
+    names = new String[files * 2];
+    for (int i = 0; i < files; i++) {
+      int month = i / FILES_PER_FOLDER;
+      Path folder = root.resolve(Integer.toString(2000 + month / 12)).resolve(String.format("%d-%02d", 2000 + month / 12, 1 + month % 12));
+      Files.createDirectories(folder);
+      String name = String.format("IMG_%06d.JPG", i);
+      Files.write(folder.resolve(name), new byte[] { (byte) i });
+      names[2 * i] = name;
+      names[2 * i + 1] = String.format("DSC_%06d.JPG", i);
+    }
+    DestinationIndex.open(root).save();
+    index = DestinationIndex.open(root);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Samples.delete(root);
+  }
+
+  @Benchmark
+  public boolean contains() {
+    String name = names[next];
+    next = (next + 1) % names.length;
+    return index.contains(name);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public DestinationIndex open() throws IOException {
+    return DestinationIndex.open(root);
+  }
+}
@@ -0,0 +1,72 @@
+package org.rv.picmgr2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a GPS position into a sample file, as the copy does for photos
+ * located from a close shot: the EXIF of the file is read into an output
+ * set, the position added and the file rewritten. The output is discarded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExifRewriterBenchmark {
+
+  private Path tmp;
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException, ImageReadException, ImageWriteException {
+    tmp = Samples.tempDir();
+    List<Path> files = Samples.jpegs(tmp, 1);
+    file = files.get(0).toFile();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Samples.delete(tmp);
+  }
+
+  private TiffOutputSet outputSet() throws ImageReadException, ImageWriteException, IOException {
+    JpegImageMetadata metadata = (JpegImageMetadata) Imaging.getMetadata(file);
+    TiffOutputSet outputSet = metadata.getExif().getOutputSet();
+    outputSet.setGPSInDegrees(2.35, 48.85);
+    return outputSet;
+  }
+
+  @Benchmark
+  public void updateExifMetadataLossless() throws ImageReadException, ImageWriteException, IOException {
+    new ExifRewriter().updateExifMetadataLossless(new ByteSourceFile(file), Samples.NULL_OUTPUT, outputSet());
+  }
+
+  @Benchmark
+  public void updateExifMetadataLosslessStreaming() throws ImageReadException, ImageWriteException, IOException {
+    new ExifRewriter().updateExifMetadataLosslessStreaming(new ByteSourceFile(file), Samples.NULL_OUTPUT, outputSet());
+  }
+}
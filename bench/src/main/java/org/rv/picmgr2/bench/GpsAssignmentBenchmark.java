@@ -0,0 +1,80 @@
+package org.rv.picmgr2.bench;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rv.picmgr2.GpsAssigner;
+import org.rv.picmgr2.MetaTagUtil;
+import org.rv.picmgr2.PhotoInfo;
+
+/**
+ * Location of the photos without GPS from the closest shot in time, over a
+ * synthetic timeline: findCloserDateWithGpsInfo called for each photo, as
+ * the import did, and the two sweeps of GpsAssigner. One operation locates
+ * the whole timeline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GpsAssignmentBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int photos;
+
+  @Param({ "10", "1000" })
+  public int gpsEvery;
+
+  private List<PhotoInfo> timeline;
+  private GPSInfo[] gps;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    timeline = Samples.timeline(Paths.get("timeline"), photos, gpsEvery);
+    gps = new GPSInfo[timeline.size()];
+    for (int i = 0; i < gps.length; i++) {
+      gps[i] = timeline.get(i).getGpsInfo();
+    }
+  }
+
+  // assign gives the located photos the GPS info of their master
+  @Setup(Level.Invocation)
+  public void reset() {
+    for (int i = 0; i < gps.length; i++) {
+      PhotoInfo photo = timeline.get(i);
+      photo.setMaster(null);
+      photo.setGpsInfo(gps[i]);
+    }
+  }
+
+  @Benchmark
+  public void findCloserDateWithGpsInfo(Blackhole blackhole) {
+    for (int i = 0; i < timeline.size(); i++) {
+      if (!timeline.get(i).hasGpsInfo()) {
+        blackhole.consume(MetaTagUtil.findCloserDateWithGpsInfo(i, timeline));
+      }
+    }
+  }
+
+  @Benchmark
+  public int assign() {
+    return new GpsAssigner().assign(timeline);
+  }
+}
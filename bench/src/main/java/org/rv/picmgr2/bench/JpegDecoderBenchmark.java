@@ -0,0 +1,61 @@
+package org.rv.picmgr2.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
+import org.apache.commons.imaging.formats.jpeg.decoder.JpegDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full decode of a baseline JPEG held in memory, from the segments to the
+ * RGB image, up to the size of a 24 MP photo where the entropy decoding
+ * shows, at full size and scaled down by the decoder as for previews. The
+ * JPEG is baseline, baseline with a restart interval of 64 MCUs, whose
+ * intervals are decoded in parallel, or progressive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JpegDecoderBenchmark {
+
+  @Param({ "1024x768", "6000x4000" })
+  public String size;
+
+  @Param({ "1", "2", "4", "8" })
+  public int scale;
+
+  @Param({ "baseline", "restart", "progressive" })
+  public String encoding;
+
+  private byte[] jpeg;
+
+  @Setup
+  public void setUp() throws IOException, ImageReadException, ImageWriteException {
+    String[] dimensions = size.split("x");
+    jpeg = Samples.cameraJpeg(new Random(42), Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), 0,
+        "progressive".equals(encoding), "restart".equals(encoding) ? 64 : 0);
+  }
+
+  @Benchmark
+  public BufferedImage decode() throws ImageReadException, IOException {
+    return new JpegDecoder(scale).decode(new ByteSourceArray(jpeg));
+  }
+}
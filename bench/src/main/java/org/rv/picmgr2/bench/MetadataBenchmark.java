@@ -0,0 +1,77 @@
+package org.rv.picmgr2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.Imaging;
+import org.apache.commons.imaging.common.IImageMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.rv.picmgr2.MetaTagUtil;
+import org.rv.picmgr2.PhotoInfo;
+
+/**
+ * Metadata extraction of one file, cycling over the samples: the generic
+ * Imaging.getMetadata, which builds every EXIF directory, and the scan path
+ * of the import, which reads the date and GPS tags only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+
+  private Path tmp;
+  private File[] files;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException, ImageReadException, ImageWriteException {
+    tmp = Samples.tempDir();
+    List<Path> paths = Samples.jpegs(tmp, 16);
+    files = new File[paths.size()];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = paths.get(i).toFile();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Samples.delete(tmp);
+  }
+
+  private File nextFile() {
+    File file = files[next];
+    next = (next + 1) % files.length;
+    return file;
+  }
+
+  @Benchmark
+  public IImageMetadata getMetadata() throws ImageReadException, IOException {
+    return Imaging.getMetadata(nextFile());
+  }
+
+  @Benchmark
+  public PhotoInfo extractMetaTags() throws ImageReadException, IOException, ParseException {
+    PhotoInfo photo = new PhotoInfo(nextFile().toPath(), false);
+    MetaTagUtil.extractMetaTags(photo, true);
+    return photo;
+  }
+}
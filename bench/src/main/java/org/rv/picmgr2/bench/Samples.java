@@ -0,0 +1,215 @@
+package org.rv.picmgr2.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.common.RationalNumber;
+import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
+import org.apache.commons.imaging.formats.tiff.JpegImageData;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffDirectoryConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffFieldTypeConstants;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputDirectory;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputField;
+import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.rv.picmgr2.PhotoInfo;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Input data of the benchmarks. The JPEG samples are the files of the
+ * folder given by the system property bench.images (e.g.
+ * -jvmArgsAppend -Dbench.images=/photos/2015) or, without it, camera-like
+ * files generated once per trial: a baseline JPEG with an EXIF segment
+ * holding the usual IFD0 and EXIF tags, a maker note, a GPS position and a
+ * thumbnail.
+ */
+final class Samples {
+
+  static final String IMAGES_PROPERTY = "bench.images";
+  private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+  private Samples() {
+  }
+
+  static List<Path> jpegs(Path tmp, int count) throws IOException, ImageReadException, ImageWriteException {
+    String folder = System.getProperty(IMAGES_PROPERTY);
+    List<Path> files = new ArrayList<>();
+    if (folder != null) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(new File(folder).toPath(), "*.{jpg,JPG,jpeg,JPEG}")) {
+        for (Path file : stream) {
+          files.add(file);
+        }
+      }
+      if (files.isEmpty()) {
+        throw new IOException("No JPEG in " + folder);
+      }
+      return files;
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < count; i++) {
+      Path file = tmp.resolve(String.format("IMG_%04d.jpg", i));
+      Files.write(file, cameraJpeg(random, 1024, 768, i));
+      files.add(file);
+    }
+    return files;
+  }
+
+  static byte[] cameraJpeg(Random random, int width, int height, int index) throws IOException, ImageReadException, ImageWriteException {
+    return cameraJpeg(random, width, height, index, false, 0);
+  }
+
+  // restartInterval MCUs between RSTn markers, none when 0
+  static byte[] cameraJpeg(Random random, int width, int height, int index, boolean progressive, int restartInterval)
+      throws IOException, ImageReadException, ImageWriteException {
+    TiffOutputSet outputSet = new TiffOutputSet();
+    TiffOutputDirectory root = outputSet.getOrCreateRootDirectory();
+    root.add(TiffTagConstants.TIFF_TAG_MAKE, "RV");
+    root.add(TiffTagConstants.TIFF_TAG_MODEL, "Bench 1");
+    root.add(TiffTagConstants.TIFF_TAG_SOFTWARE, "rvpicmgr-bench");
+    root.add(TiffTagConstants.TIFF_TAG_DATE_TIME, "2015:06:13 10:20:30");
+    TiffOutputDirectory exif = outputSet.getOrCreateExifDirectory();
+    exif.add(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL, String.format("2015:06:%02d %02d:%02d:00", 1 + index % 28, index % 24, index * 7 % 60));
+    exif.add(ExifTagConstants.EXIF_TAG_DATE_TIME_DIGITIZED, "2015:06:13 10:20:30");
+    exif.add(ExifTagConstants.EXIF_TAG_EXPOSURE_TIME, new RationalNumber(1, 125));
+    exif.add(ExifTagConstants.EXIF_TAG_FNUMBER, new RationalNumber(28, 10));
+    exif.add(ExifTagConstants.EXIF_TAG_ISO, (short) 200);
+    exif.add(ExifTagConstants.EXIF_TAG_FOCAL_LENGTH, new RationalNumber(50, 1));
+    byte[] makerNote = new byte[8192];
+    random.nextBytes(makerNote);
+    exif.add(new TiffOutputField(ExifTagConstants.EXIF_TAG_MAKER_NOTE, TiffFieldTypeConstants.FIELD_TYPE_UNDEFINED, makerNote.length, makerNote));
+    outputSet.setGPSInDegrees(2.35 + index * 0.001, 48.85 + index * 0.001);
+
+    byte[] thumbnail = jpeg(image(random, 160, 120), false);
+    TiffOutputDirectory ifd1 = new TiffOutputDirectory(TiffDirectoryConstants.DIRECTORY_TYPE_SUB, outputSet.byteOrder);
+    ifd1.setJpegImageData(new JpegImageData(0, thumbnail.length, thumbnail));
+    outputSet.addDirectory(ifd1);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ExifRewriter().updateExifMetadataLossless(jpeg(image(random, width, height), progressive, restartInterval), out, outputSet);
+    return out.toByteArray();
+  }
+
+  static byte[] jpeg(BufferedImage image, boolean progressive) throws IOException {
+    return jpeg(image, progressive, 0);
+  }
+
+  static byte[] jpeg(BufferedImage image, boolean progressive, int restartInterval) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    if (progressive) {
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+    }
+    IIOMetadata metadata = null;
+    if (restartInterval > 0) {
+      metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+      Element tree = (Element) metadata.getAsTree(JPEG_METADATA_FORMAT);
+      Node markers = tree.getElementsByTagName("markerSequence").item(0);
+      IIOMetadataNode dri = new IIOMetadataNode("dri");
+      dri.setAttribute("interval", Integer.toString(restartInterval));
+      markers.insertBefore(dri, markers.getFirstChild());
+      metadata.setFromTree(JPEG_METADATA_FORMAT, tree);
+    }
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, metadata), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  // smooth gradients with some noise, closer to a photo than random pixels
+  static BufferedImage image(Random random, int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int phase = random.nextInt(256);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int r = (x * 255 / width + phase) & 255;
+        int g = (y * 255 / height) & 255;
+        int b = ((x + y) / 4 + random.nextInt(24)) & 255;
+        image.setRGB(x, y, r << 16 | g << 8 | b);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * A timeline of photos, sorted by date, taken every few minutes with a
+   * gap of ten days now and then; about one in gpsEvery of them has a GPS
+   * position.
+   */
+  static List<PhotoInfo> timeline(Path folder, int size, int gpsEvery) {
+    Random random = new Random(7);
+    List<PhotoInfo> photos = new ArrayList<>(size);
+    long time = 1433116800000L;
+    for (int i = 0; i < size; i++) {
+      time += 60000L * (1 + random.nextInt(30));
+      if (random.nextInt(200) == 0) {
+        time += 10L * 24 * 60 * 60 * 1000;
+      }
+      PhotoInfo photo = new PhotoInfo(folder.resolve("IMG_" + i + ".jpg"), false);
+      photo.setTakenOn(time);
+      if (random.nextInt(gpsEvery) == 0) {
+        photo.setGpsInfo(new GPSInfo("N", "E", new RationalNumber(48, 1), new RationalNumber(51, 1), new RationalNumber(i % 60, 1),
+            new RationalNumber(2, 1), new RationalNumber(21, 1), new RationalNumber(i % 60, 1)));
+      }
+      photos.add(photo);
+    }
+    return photos;
+  }
+
+  static Path tempDir() throws IOException {
+    return Files.createTempDirectory("rvpicmgr-bench");
+  }
+
+  static void delete(Path dir) throws IOException {
+    if (dir == null || Files.notExists(dir)) {
+      return;
+    }
+    delete(dir.toFile());
+  }
+
+  private static void delete(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  static final OutputStream NULL_OUTPUT = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  };
+}
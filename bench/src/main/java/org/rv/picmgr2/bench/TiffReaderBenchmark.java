@@ -0,0 +1,63 @@
+package org.rv.picmgr2.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.FormatCompliance;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
+import org.apache.commons.imaging.formats.jpeg.JpegImageParser;
+import org.apache.commons.imaging.formats.tiff.TiffContents;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.TiffReader;
+import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.GpsTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the TIFF directories of an EXIF segment held in memory: all the
+ * directories with their fields, as for getMetadata, against the walk that
+ * decodes the date and GPS tags only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TiffReaderBenchmark {
+
+  private static final TagInfo[] TAGS = { ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL,
+      GpsTagConstants.GPS_TAG_GPS_LATITUDE_REF, GpsTagConstants.GPS_TAG_GPS_LATITUDE,
+      GpsTagConstants.GPS_TAG_GPS_LONGITUDE_REF, GpsTagConstants.GPS_TAG_GPS_LONGITUDE };
+
+  private byte[] exif;
+
+  @Setup
+  public void setUp() throws IOException, ImageReadException, ImageWriteException {
+    byte[] jpeg = Samples.cameraJpeg(new Random(42), 320, 240, 0);
+    exif = new JpegImageParser().getExifRawData(new ByteSourceArray(jpeg));
+  }
+
+  @Benchmark
+  public TiffContents readContents() throws ImageReadException, IOException {
+    return new TiffReader(false).readContents(new ByteSourceArray(exif), null, FormatCompliance.getDefault());
+  }
+
+  @Benchmark
+  public TiffField[] readTags() throws ImageReadException {
+    return new TiffReader(false).readTags(exif, 0, TAGS);
+  }
+}
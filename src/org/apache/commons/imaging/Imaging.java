@@ -35,6 +35,7 @@ import org.apache.commons.imaging.common.bytesource.ByteSource;
 import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
 import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
 import org.apache.commons.imaging.common.bytesource.ByteSourceInputStream;
+import org.apache.commons.imaging.common.bytesource.ByteSourceMapped;
 import org.apache.commons.imaging.icc.IccProfileInfo;
 import org.apache.commons.imaging.icc.IccProfileParser;
 import org.apache.commons.imaging.util.Debug;
@@ -410,7 +411,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static ICC_Profile getICCProfile(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getICCProfile(new ByteSourceFile(file), params);
+        return getICCProfile(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     protected static ICC_Profile getICCProfile(ByteSource byteSource, Map<String,Object> params)
@@ -510,7 +512,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static byte[] getICCProfileBytes(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getICCProfileBytes(new ByteSourceFile(file), params);
+        return getICCProfileBytes(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     private static byte[] getICCProfileBytes(ByteSource byteSource, Map<String,Object> params)
@@ -666,7 +669,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static ImageInfo getImageInfo(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getImageInfo(new ByteSourceFile(file), params);
+        return getImageInfo(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     /**
@@ -697,6 +701,26 @@ public abstract class Imaging implements ImagingConstants {
         return imageInfo;
     }
 
+    private static ByteSource createByteSource(File file,
+            Map<String,Object> params) throws IOException {
+        if (params != null
+                && Boolean.TRUE.equals(params.get(PARAM_KEY_MEMORY_MAPPED))) {
+            return new ByteSourceMapped(file);
+        }
+        return new ByteSourceFile(file);
+    }
+
+    // the parsers that validate their params don't know about byte sources.
+    private static Map<String,Object> withoutByteSourceParams(
+            Map<String,Object> params) {
+        if (params == null || !params.containsKey(PARAM_KEY_MEMORY_MAPPED)) {
+            return params;
+        }
+        Map<String,Object> result = new HashMap<String,Object>(params);
+        result.remove(PARAM_KEY_MEMORY_MAPPED);
+        return result;
+    }
+
     private static ImageParser getImageParser(ByteSource byteSource)
             throws ImageReadException, IOException {
         ImageFormat format = guessFormat(byteSource);
@@ -814,7 +838,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static Dimension getImageSize(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getImageSize(new ByteSourceFile(file), params);
+        return getImageSize(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     public static Dimension getImageSize(ByteSource byteSource, Map<String,Object> params)
@@ -909,7 +934,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static String getXmpXml(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getXmpXml(new ByteSourceFile(file), params);
+        return getXmpXml(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     /**
@@ -1074,7 +1100,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static IImageMetadata getMetadata(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getMetadata(new ByteSourceFile(file), params);
+        return getMetadata(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     private static IImageMetadata getMetadata(ByteSource byteSource, Map<String,Object> params)
@@ -1360,7 +1387,8 @@ public abstract class Imaging implements ImagingConstants {
      */
     public static BufferedImage getBufferedImage(File file, Map<String,Object> params)
             throws ImageReadException, IOException {
-        return getBufferedImage(new ByteSourceFile(file), params);
+        return getBufferedImage(createByteSource(file, params),
+                withoutByteSourceParams(params));
     }
 
     
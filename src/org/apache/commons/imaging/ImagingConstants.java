@@ -130,4 +130,20 @@ public interface ImagingConstants {
      * @see org.apache.commons.imaging.PixelDensity
      */
     public static final String PARAM_KEY_PIXEL_DENSITY = "PIXEL_DENSITY";
+
+    /**
+     * Parameter key. Indicates whether files should be read through a memory
+     * mapping rather than through streams and RandomAccessFile reads. Useful
+     * for large TIFF and DNG files, whose directories and strips are read
+     * with many small random accesses.
+     * <p>
+     * Only applies to the methods that take a File.
+     * <p>
+     * Valid values: Boolean.TRUE and Boolean.FALSE. Default value:
+     * Boolean.FALSE.
+     * <p>
+     * 
+     * @see org.apache.commons.imaging.common.bytesource.ByteSourceMapped
+     */
+    public static final String PARAM_KEY_MEMORY_MAPPED = "MEMORY_MAPPED";
 }
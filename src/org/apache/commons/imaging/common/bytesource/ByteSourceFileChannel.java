@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.imaging.common.bytesource;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file byte source for header-only work such as metadata extraction.
+ * <p>
+ * The file is opened once, through a single FileChannel shared by all the
+ * streams and blocks handed out, and every read is a positional read. The
+ * start of the file is read in chunks of the read-ahead size and kept, so
+ * that format detection, segment traversal and later getBlock() calls on the
+ * header are served from memory; reads past the header cache go to the
+ * channel through a per-stream window and are not retained. Skipping on the
+ * streams only moves the position.
+ * <p>
+ * Unlike the other byte sources this one holds an open file and must be
+ * closed.
+ */
+public class ByteSourceFileChannel extends ByteSource implements Closeable {
+    public static final int DEFAULT_READ_AHEAD = 64 * 1024;
+    private static final int MAX_HEADER_CACHE = 1024 * 1024;
+
+    private final File file;
+    private final int readAhead;
+    private final int maxHeader;
+    private FileChannel channel = null;
+    private long length = -1;
+    private byte header[] = new byte[0];
+    private int headerLength = 0;
+
+    public ByteSourceFileChannel(File file) {
+        this(file, DEFAULT_READ_AHEAD);
+    }
+
+    public ByteSourceFileChannel(File file, int readAhead) {
+        super(file.getName());
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("Invalid read-ahead size: "
+                    + readAhead);
+        }
+        this.file = file;
+        this.readAhead = readAhead;
+        this.maxHeader = Math.max(readAhead, MAX_HEADER_CACHE);
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            length = channel.size();
+        }
+        return channel;
+    }
+
+    /**
+     * Number of bytes read from the file so far into the header cache.
+     */
+    public int getHeaderBytesRead() {
+        return headerLength;
+    }
+
+    /**
+     * Makes sure the header cache covers [0, end), growing it by read-ahead
+     * chunks. Returns false if end lies beyond the header cache limit.
+     */
+    private boolean ensureHeader(long end) throws IOException {
+        if (end <= headerLength) {
+            return true;
+        }
+        if (end > maxHeader) {
+            return false;
+        }
+        getChannel();
+        long wanted = ((end + readAhead - 1) / readAhead) * readAhead;
+        int newLength = (int) Math.min(Math.min(wanted, maxHeader), length);
+        if (newLength <= headerLength) {
+            return end <= headerLength;
+        }
+        byte grown[] = new byte[newLength];
+        System.arraycopy(header, 0, grown, 0, headerLength);
+        readFully(grown, headerLength, newLength - headerLength, headerLength);
+        header = grown;
+        headerLength = newLength;
+        return end <= headerLength;
+    }
+
+    private void readFully(byte buffer[], int offset, int count, long position)
+            throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, count);
+        while (bb.hasRemaining()) {
+            int read = getChannel().read(bb, position + bb.position() - offset);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file: " + file);
+            }
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+        private long position = 0;
+        private byte window[] = null;
+        private long windowStart = 0;
+        private int windowLength = 0;
+
+        // returns the number of bytes available at position, 0 at EOF
+        private int fill() throws IOException {
+            getChannel();
+            if (position >= length) {
+                return 0;
+            }
+            if (ensureHeader(position + 1)) {
+                return 0;
+            }
+            if (position >= windowStart
+                    && position < windowStart + windowLength) {
+                return (int) (windowStart + windowLength - position);
+            }
+            if (window == null) {
+                window = new byte[readAhead];
+            }
+            windowStart = position;
+            windowLength = (int) Math.min(readAhead, length - position);
+            readFully(window, 0, windowLength, windowStart);
+            return windowLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position < headerLength) {
+                return 0xff & header[(int) position++];
+            }
+            if (fill() < 1 && position >= headerLength) {
+                return -1;
+            }
+            if (position < headerLength) {
+                return 0xff & header[(int) position++];
+            }
+            return 0xff & window[(int) (position++ - windowStart)];
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            if (b == null) {
+                throw new NullPointerException();
+            } else if ((off < 0) || (len < 0) || (off + len > b.length)
+                    || (off + len < 0)) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+
+            if (position >= headerLength) {
+                int available = fill();
+                if (available < 1 && position >= headerLength) {
+                    return -1;
+                }
+                if (position >= headerLength) {
+                    int count = Math.min(len, available);
+                    System.arraycopy(window, (int) (position - windowStart), b,
+                            off, count);
+                    position += count;
+                    return count;
+                }
+            }
+            int count = Math.min(len, headerLength - (int) position);
+            System.arraycopy(header, (int) position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            getChannel();
+            long skipped = Math.min(n, length - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            getChannel();
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new ChannelInputStream();
+    }
+
+    @Override
+    public byte[] getBlock(int start, int length) throws IOException {
+        getChannel();
+        // We include a separate check for int overflow.
+        if ((start < 0) || (length < 0) || (start + length < 0)
+                || (start + length > this.length)) {
+            throw new IOException("Could not read block (block start: "
+                    + start + ", block length: " + length
+                    + ", data length: " + this.length + ").");
+        }
+
+        byte result[] = new byte[length];
+        if (ensureHeader(start + length)) {
+            System.arraycopy(header, start, result, 0, length);
+        } else {
+            readFully(result, 0, length, start);
+        }
+        return result;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        getChannel();
+        return length;
+    }
+
+    @Override
+    public byte[] getAll() throws IOException {
+        return getBlock(0, (int) getLength());
+    }
+
+    @Override
+    public String getDescription() {
+        return "File: '" + file.getAbsolutePath() + "'";
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.imaging.common.bytesource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file byte source backed by memory mappings, for large TIFF and DNG
+ * files whose directories and strips are read with many small random
+ * accesses.
+ * <p>
+ * The file is mapped in regions of at most 1 GB, each mapped on first use,
+ * so files larger than 2 GB are supported. There is no zero-copy access:
+ * getBlock() and the input streams copy out of the mapping, which saves
+ * opening the file for each read. The mappings stay valid after the channel
+ * used to create them is closed, so this byte source holds no open file.
+ */
+public class ByteSourceMapped extends ByteSource {
+    private static final int REGION_BITS = 30;
+    private static final long REGION_SIZE = 1L << REGION_BITS;
+
+    private final File file;
+    private final long length;
+    private final MappedByteBuffer regions[];
+
+    public ByteSourceMapped(File file) throws IOException {
+        super(file.getName());
+        this.file = file;
+        this.length = file.length();
+        int regionCount = (int) ((length + REGION_SIZE - 1) >>> REGION_BITS);
+        this.regions = new MappedByteBuffer[regionCount];
+    }
+
+    private synchronized ByteBuffer getRegion(int index) throws IOException {
+        if (regions[index] == null) {
+            long start = (long) index << REGION_BITS;
+            long size = Math.min(REGION_SIZE, length - start);
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                regions[index] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, size);
+            } finally {
+                channel.close();
+            }
+        }
+        return regions[index].duplicate();
+    }
+
+    private void copy(long start, byte dst[], int off, int length)
+            throws IOException {
+        while (length > 0) {
+            int region = (int) (start >>> REGION_BITS);
+            int offset = (int) (start & (REGION_SIZE - 1));
+            int count = (int) Math.min(length, REGION_SIZE - offset);
+            ByteBuffer buffer = getRegion(region);
+            buffer.position(offset);
+            buffer.get(dst, off, count);
+            start += count;
+            off += count;
+            length -= count;
+        }
+    }
+
+    private class MappedInputStream extends InputStream {
+        private long position = 0;
+        private ByteBuffer buffer = null;
+        private int bufferRegion = -1;
+
+        @Override
+        public int read() throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            int region = (int) (position >>> REGION_BITS);
+            if (region != bufferRegion) {
+                buffer = getRegion(region);
+                bufferRegion = region;
+            }
+            return 0xff & buffer.get((int) (position++ & (REGION_SIZE - 1)));
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            if (b == null) {
+                throw new NullPointerException();
+            } else if ((off < 0) || (len < 0) || (off + len > b.length)
+                    || (off + len < 0)) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int count = (int) Math.min(len, length - position);
+            copy(position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0) {
+                return 0;
+            }
+            long skipped = Math.min(n, length - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new MappedInputStream();
+    }
+
+    @Override
+    public byte[] getBlock(int start, int length) throws IOException {
+        // We include a separate check for int overflow.
+        if ((start < 0) || (length < 0) || (start + length < 0)
+                || (start + length > this.length)) {
+            throw new IOException("Could not read block (block start: "
+                    + start + ", block length: " + length
+                    + ", data length: " + this.length + ").");
+        }
+
+        byte result[] = new byte[length];
+        copy(start, result, 0, length);
+        return result;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public byte[] getAll() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File too large to be read into memory: "
+                    + length + " bytes.");
+        }
+        return getBlock(0, (int) length);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Mapped file: '" + file.getAbsolutePath() + "'";
+    }
+
+}
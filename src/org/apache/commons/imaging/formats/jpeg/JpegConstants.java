@@ -25,6 +25,27 @@ import org.apache.commons.imaging.common.BinaryConstant;
 public interface JpegConstants {
     public static final int MAX_SEGMENT_SIZE = 0xffff;
 
+    /**
+     * Parameter key. Used in read operations to decode the image directly at
+     * 1/2, 1/4 or 1/8 of its size, which is much faster than decoding it at
+     * full size and scaling it down. At 1/8 only the DC coefficient of each
+     * block is used.
+     * <p>
+     * Valid values: Integer 1, 2, 4 or 8, the divisor of the width and
+     * height, rounded up. Default value: 1.
+     */
+    public static final String PARAM_KEY_JPEG_SCALE = "JPEG_SCALE";
+
+    /**
+     * Parameter key. Used in read operations on progressive JPEGs to output
+     * the image after its first scans, for a faster, coarser image. Baseline
+     * JPEGs are always decoded in full.
+     * <p>
+     * Valid values: Integer, the number of scans decoded, or 0 for all of
+     * them. Default value: 0.
+     */
+    public static final String PARAM_KEY_JPEG_MAX_SCANS = "JPEG_MAX_SCANS";
+
     public static final BinaryConstant JFIF0_SIGNATURE = new BinaryConstant(
             new byte[] { 0x4a, // J
                     0x46, // F
@@ -114,6 +135,9 @@ public interface JpegConstants {
     public static final int SOS_Marker = 0xFFda;
     public static final int DQTMarker = 0xFFdb;
     public static final int DNLMarker = 0xFFdc;
+    public static final int DRIMarker = 0xFFdd;
+    public static final int RST0Marker = 0xFFd0;
+    public static final int RST7Marker = 0xFFd7;
     public static final int COMMarker = 0xFFfe;
 
     public static final List<Integer> MARKERS = Collections
@@ -124,7 +148,7 @@ public interface JpegConstants {
                     SOF5Marker, SOF6Marker, SOF7Marker, SOF8Marker, SOF9Marker,
                     SOF10Marker, SOF11Marker, DACMarker, SOF13Marker,
                     SOF14Marker, SOF15Marker, EOIMarker, SOS_Marker, DQTMarker,
-                    DNLMarker, COMMarker));
+                    DNLMarker, DRIMarker, COMMarker));
 
     public static final BinaryConstant icc_profile_label = new BinaryConstant(
             new byte[] { 0x49, 0x43, 0x43, 0x5F, 0x50, 0x52, 0x4F, 0x46, 0x49,
@@ -20,6 +20,7 @@ import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.text.NumberFormat;
@@ -54,7 +55,11 @@ import org.apache.commons.imaging.formats.jpeg.xmp.JpegXmpParser;
 import org.apache.commons.imaging.formats.tiff.TiffField;
 import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
 import org.apache.commons.imaging.formats.tiff.TiffImageParser;
+import org.apache.commons.imaging.formats.tiff.TiffReader;
+import org.apache.commons.imaging.formats.tiff.constants.TiffDirectoryType;
 import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfoLong;
 import org.apache.commons.imaging.util.Debug;
 
 public class JpegImageParser extends ImageParser implements JpegConstants {
@@ -83,6 +88,20 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
 
     private static final String ACCEPTED_EXTENSIONS[] = { ".jpg", ".jpeg", };
 
+    private static final int SOFN_MARKERS[] = { SOF0Marker, SOF1Marker,
+            SOF2Marker, SOF3Marker, SOF5Marker, SOF6Marker, SOF7Marker,
+            SOF9Marker, SOF10Marker, SOF11Marker, SOF13Marker, SOF14Marker,
+            SOF15Marker, };
+
+    // the thumbnail tags, as found in IFD1
+    private static final TagInfo EXIF_THUMBNAIL_TAGS[] = {
+            new TagInfoLong("JPEGInterchangeFormat",
+                    TiffTagConstants.TIFF_TAG_JPEG_INTERCHANGE_FORMAT.tag, 1,
+                    TiffDirectoryType.TIFF_DIRECTORY_IFD1),
+            new TagInfoLong("JPEGInterchangeFormatLength",
+                    TiffTagConstants.TIFF_TAG_JPEG_INTERCHANGE_FORMAT_LENGTH.tag,
+                    1, TiffDirectoryType.TIFF_DIRECTORY_IFD1), };
+
     @Override
     protected String[] getAcceptedExtensions() {
         return ACCEPTED_EXTENSIONS;
@@ -91,7 +110,25 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
     @Override
     public final BufferedImage getBufferedImage(ByteSource byteSource,
             Map<String,Object> params) throws ImageReadException, IOException {
-        JpegDecoder jpegDecoder = new JpegDecoder();
+        int scale = 1;
+        if (params != null && params.containsKey(PARAM_KEY_JPEG_SCALE)) {
+            Object value = params.get(PARAM_KEY_JPEG_SCALE);
+            if (!(value instanceof Integer)
+                    || !JpegDecoder.isValidScale((Integer) value)) {
+                throw new ImageReadException("Invalid JPEG scale: " + value);
+            }
+            scale = (Integer) value;
+        }
+        int maxScans = 0;
+        if (params != null && params.containsKey(PARAM_KEY_JPEG_MAX_SCANS)) {
+            Object value = params.get(PARAM_KEY_JPEG_MAX_SCANS);
+            if (!(value instanceof Integer) || (Integer) value < 0) {
+                throw new ImageReadException("Invalid JPEG scan count: "
+                        + value);
+            }
+            maxScans = (Integer) value;
+        }
+        JpegDecoder jpegDecoder = new JpegDecoder(scale, maxScans);
         return jpegDecoder.decode(byteSource);
     }
 
@@ -122,7 +159,7 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
                 SOF7Marker, SOF9Marker, SOF10Marker, SOF11Marker, SOF13Marker,
                 SOF14Marker, SOF15Marker, };
 
-        JpegUtils.Visitor visitor = new JpegUtils.Visitor() {
+        JpegUtils.Visitor visitor = new JpegUtils.StreamingVisitor() {
             // return false to exit before reading image data.
             public boolean beginSOS() {
                 return false;
@@ -132,6 +169,14 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
                     byte imageData[]) {
             }
 
+            public void visitSOS(int marker, byte markerBytes[],
+                    InputStream imageData) {
+            }
+
+            public boolean readSegment(int marker) {
+                return keepMarker(marker, markers);
+            }
+
             // return false to exit traversal.
             public boolean visitSegment(int marker, byte markerBytes[],
                     int markerLength, byte markerLengthBytes[],
@@ -275,14 +320,32 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
         List<Segment> segments = readSegments(byteSource,
                 new int[] { JPEG_APP2_Marker, }, false);
 
-        List<App2Segment> filtered = new ArrayList<App2Segment>();
+        List<App2Segment> app2Segments = new ArrayList<App2Segment>();
         if (segments != null) {
-            // throw away non-icc profile app2 segments.
             for (int i = 0; i < segments.size(); i++) {
-                App2Segment segment = (App2Segment) segments.get(i);
-                if (segment.icc_bytes != null) {
-                    filtered.add(segment);
-                }
+                app2Segments.add((App2Segment) segments.get(i));
+            }
+        }
+        return getICCProfileBytes(app2Segments);
+    }
+
+    /**
+     * Assembles the ICC profile from segments already collected by
+     * readMetadataSegments().
+     */
+    public byte[] getICCProfileBytes(JpegMetadataSegments segments)
+            throws ImageReadException {
+        return getICCProfileBytes(segments.getApp2Segments());
+    }
+
+    private byte[] getICCProfileBytes(List<App2Segment> segments)
+            throws ImageReadException {
+        List<App2Segment> filtered = new ArrayList<App2Segment>();
+        // throw away non-icc profile app2 segments.
+        for (int i = 0; i < segments.size(); i++) {
+            App2Segment segment = segments.get(i);
+            if (segment.icc_bytes != null) {
+                filtered.add(segment);
             }
         }
 
@@ -306,10 +369,19 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
     @Override
     public IImageMetadata getMetadata(ByteSource byteSource, Map<String,Object> params)
             throws ImageReadException, IOException {
-        TiffImageMetadata exif = getExifMetadata(byteSource, params);
+        return getMetadata(readMetadataSegments(byteSource), params);
+    }
 
-        JpegPhotoshopMetadata photoshop = getPhotoshopMetadata(byteSource,
-                params);
+    /**
+     * Builds the metadata from segments already collected by
+     * readMetadataSegments(), without reading the file again.
+     */
+    public IImageMetadata getMetadata(JpegMetadataSegments segments,
+            Map<String,Object> params) throws ImageReadException, IOException {
+        TiffImageMetadata exif = getExifMetadata(segments, params);
+
+        JpegPhotoshopMetadata photoshop = getPhotoshopMetadata(
+                segments.getApp13Segments(), params);
 
         if (null == exif && null == photoshop) {
             return null;
@@ -320,6 +392,70 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
         return result;
     }
 
+    /**
+     * Collects the APP1 (EXIF, XMP), APP2 (ICC) and APP13 (Photoshop/IPTC)
+     * segments in a single traversal of the header, stopping at the start of
+     * the image data.
+     */
+    public JpegMetadataSegments readMetadataSegments(ByteSource byteSource)
+            throws ImageReadException, IOException {
+        final JpegMetadataSegments result = new JpegMetadataSegments();
+        final JpegImageParser parser = this;
+
+        JpegUtils.Visitor visitor = new JpegUtils.StreamingVisitor() {
+            // return false to exit before reading image data.
+            public boolean beginSOS() {
+                return false;
+            }
+
+            public void visitSOS(int marker, byte markerBytes[],
+                    byte imageData[]) {
+            }
+
+            public void visitSOS(int marker, byte markerBytes[],
+                    InputStream imageData) {
+            }
+
+            public boolean readSegment(int marker) {
+                return marker == JPEG_APP1_Marker
+                        || marker == JPEG_APP2_Marker
+                        || marker == JPEG_APP13_Marker
+                        || Arrays.binarySearch(SOFN_MARKERS, marker) >= 0;
+            }
+
+            // return false to exit traversal.
+            public boolean visitSegment(int marker, byte markerBytes[],
+                    int markerLength, byte markerLengthBytes[],
+                    byte segmentData[]) throws ImageReadException, IOException {
+                if (marker == EOIMarker) {
+                    return false;
+                }
+
+                if (marker == JPEG_APP1_Marker) {
+                    result.app1Segments.add(new UnknownSegment(marker,
+                            segmentData));
+                } else if (marker == JPEG_APP2_Marker) {
+                    result.app2Segments.add(new App2Segment(marker,
+                            segmentData));
+                } else if (marker == JPEG_APP13_Marker) {
+                    result.app13Segments.add(new App13Segment(parser, marker,
+                            segmentData));
+                } else if (Arrays.binarySearch(SOFN_MARKERS, marker) >= 0) {
+                    if (result.sofnSegment == null) {
+                        result.sofnSegment = new SofnSegment(marker,
+                                segmentData);
+                    }
+                }
+
+                return true;
+            }
+        };
+
+        new JpegUtils().traverseJFIF(byteSource, visitor);
+
+        return result;
+    }
+
     public static boolean isExifAPP1Segment(GenericSegment segment) {
         return byteArrayHasPrefix(segment.bytes, EXIF_IDENTIFIER_CODE);
     }
@@ -339,7 +475,17 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
 
     public TiffImageMetadata getExifMetadata(ByteSource byteSource, Map<String,Object> params)
             throws ImageReadException, IOException {
-        byte bytes[] = getExifRawData(byteSource);
+        return getExifMetadata(getExifRawData(byteSource), params);
+    }
+
+    public TiffImageMetadata getExifMetadata(JpegMetadataSegments segments,
+            Map<String,Object> params) throws ImageReadException, IOException {
+        return getExifMetadata(getExifRawData(segments.getApp1Segments()),
+                params);
+    }
+
+    private TiffImageMetadata getExifMetadata(byte bytes[],
+            Map<String,Object> params) throws ImageReadException, IOException {
         if (null == bytes) {
             return null;
         }
@@ -360,6 +506,11 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
         List<Segment> segments = readSegments(byteSource,
                 new int[] { JPEG_APP1_Marker, }, false);
 
+        return getExifRawData(segments);
+    }
+
+    private byte[] getExifRawData(List<Segment> segments)
+            throws ImageReadException {
         if ((segments == null) || (segments.size() < 1)) {
             return null;
         }
@@ -393,6 +544,59 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
         return getByteArrayTail("trimmed exif bytes", bytes, 6);
     }
 
+    /**
+     * Reads only the given EXIF tags from the APP1 segment, without building
+     * the EXIF directories; see TiffReader.readTags().
+     *
+     * @return the field of each tag, at the same index, or null when there
+     *         is no EXIF segment.
+     */
+    public TiffField[] readExifTags(JpegMetadataSegments segments,
+            TagInfo tags[]) throws ImageReadException {
+        List<Segment> exifSegments = filterAPP1Segments(segments
+                .getApp1Segments());
+        if (exifSegments.size() < 1) {
+            return null;
+        }
+        if (exifSegments.size() > 1) {
+            throw new ImageReadException(
+                    "Sanselan currently can't parse EXIF metadata split across multiple APP1 segments.  "
+                            + "Please send this image to the Sanselan project.");
+        }
+
+        GenericSegment segment = (GenericSegment) exifSegments.get(0);
+        return new TiffReader(false).readTags(segment.bytes, 6, tags);
+    }
+
+    /**
+     * Reads the JPEG thumbnail pointed to by IFD1 of the EXIF segment, the
+     * one getEXIFThumbnail() decodes, with TiffReader.readTags() rather than
+     * the full EXIF directories.
+     *
+     * @return the bytes of the thumbnail, or null when there is no EXIF
+     *         segment or no JPEG thumbnail in it.
+     */
+    public byte[] readExifThumbnail(JpegMetadataSegments segments)
+            throws ImageReadException {
+        TiffField fields[] = readExifTags(segments, EXIF_THUMBNAIL_TAGS);
+        if (fields == null || fields[0] == null || fields[1] == null) {
+            return null;
+        }
+        GenericSegment segment = (GenericSegment) filterAPP1Segments(
+                segments.getApp1Segments()).get(0);
+        // the offset is relative to the TIFF header, after "Exif\0\0"
+        long offset = 6 + (0xffffffffL & ((Number) fields[0].getValue())
+                .intValue());
+        long length = 0xffffffffL & ((Number) fields[1].getValue()).intValue();
+        if (length == 0 || offset + length > segment.bytes.length) {
+            return null;
+        }
+        byte thumbnail[] = new byte[(int) length];
+        System.arraycopy(segment.bytes, (int) offset, thumbnail, 0,
+                thumbnail.length);
+        return thumbnail;
+    }
+
     public boolean hasExifSegment(ByteSource byteSource)
             throws ImageReadException, IOException {
         final boolean result[] = { false, };
@@ -563,6 +767,25 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
         return result.get(0);
     }
 
+    /**
+     * Extracts embedded XML metadata from segments already collected by
+     * readMetadataSegments().
+     * 
+     * @return Xmp Xml as String, if present. Otherwise, returns null.
+     */
+    public String getXmpXml(JpegMetadataSegments segments)
+            throws ImageReadException {
+        JpegXmpParser xmpParser = new JpegXmpParser();
+        for (int i = 0; i < segments.getApp1Segments().size(); i++) {
+            GenericSegment segment = (GenericSegment) segments
+                    .getApp1Segments().get(i);
+            if (xmpParser.isXmpJpegSegment(segment.bytes)) {
+                return xmpParser.parseXmpJpegSegment(segment.bytes);
+            }
+        }
+        return null;
+    }
+
     public JpegPhotoshopMetadata getPhotoshopMetadata(ByteSource byteSource,
             Map<String,Object> params) throws ImageReadException, IOException {
         List<Segment> segments = readSegments(byteSource,
@@ -572,10 +795,24 @@ public class JpegImageParser extends ImageParser implements JpegConstants {
             return null;
         }
 
+        List<App13Segment> app13Segments = new ArrayList<App13Segment>();
+        for (int i = 0; i < segments.size(); i++) {
+            app13Segments.add((App13Segment) segments.get(i));
+        }
+        return getPhotoshopMetadata(app13Segments, params);
+    }
+
+    private JpegPhotoshopMetadata getPhotoshopMetadata(
+            List<App13Segment> segments, Map<String,Object> params)
+            throws ImageReadException, IOException {
+        if (segments.size() < 1) {
+            return null;
+        }
+
         PhotoshopApp13Data photoshopApp13Data = null;
 
         for (int i = 0; i < segments.size(); i++) {
-            App13Segment segment = (App13Segment) segments.get(i);
+            App13Segment segment = segments.get(i);
 
             PhotoshopApp13Data data = segment.parsePhotoshopSegment(params);
             if (data != null && photoshopApp13Data != null) {
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.imaging.formats.jpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.imaging.formats.jpeg.segments.App13Segment;
+import org.apache.commons.imaging.formats.jpeg.segments.App2Segment;
+import org.apache.commons.imaging.formats.jpeg.segments.Segment;
+import org.apache.commons.imaging.formats.jpeg.segments.SofnSegment;
+
+/**
+ * The metadata-bearing APPn segments of a JPEG file, collected in a single
+ * traversal of the header by
+ * {@link JpegImageParser#readMetadataSegments(org.apache.commons.imaging.common.bytesource.ByteSource)}.
+ * <p>
+ * Holds the APP1 segments (EXIF and XMP), the APP2 segments (ICC profile)
+ * and the APP13 segments (Photoshop/IPTC), so that EXIF, IPTC, XMP and ICC
+ * data can all be extracted without reading the file again, and the SOFn
+ * segment with the size of the image.
+ */
+public class JpegMetadataSegments {
+    final List<Segment> app1Segments = new ArrayList<Segment>();
+    final List<App2Segment> app2Segments = new ArrayList<App2Segment>();
+    final List<App13Segment> app13Segments = new ArrayList<App13Segment>();
+    SofnSegment sofnSegment = null;
+
+    JpegMetadataSegments() {
+    }
+
+    public List<Segment> getApp1Segments() {
+        return app1Segments;
+    }
+
+    public List<App2Segment> getApp2Segments() {
+        return app2Segments;
+    }
+
+    public List<App13Segment> getApp13Segments() {
+        return app13Segments;
+    }
+
+    /**
+     * @return the first SOFn segment, or null if the file has none.
+     */
+    public SofnSegment getSofnSegment() {
+        return sofnSegment;
+    }
+}
@@ -44,67 +44,186 @@ public class JpegUtils extends BinaryFileParser implements JpegConstants {
                 IOException;
     }
 
+    /**
+     * A visitor that only needs some of the segments and can consume the
+     * image data as a stream. The bodies of the segments it does not want
+     * are skipped without being read, and the image data is never buffered.
+     */
+    public static interface StreamingVisitor extends Visitor {
+        // return false to skip the segment body; visitSegment is not called.
+        public boolean readSegment(int marker);
+
+        // called instead of visitSOS(int, byte[], byte[]). The stream starts
+        // with the SOS segment length and is closed by the traversal.
+        public void visitSOS(int marker, byte markerBytes[],
+                InputStream imageData) throws ImageReadException, IOException;
+    }
+
+    /**
+     * Buffered reader over a JPEG stream. Markers are located by scanning the
+     * buffer, and skipped segments are skipped on the underlying stream,
+     * which seeks for file based byte sources.
+     */
+    private static final class SegmentReader extends InputStream {
+        private final InputStream is;
+        private final byte buffer[] = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+
+        SegmentReader(InputStream is) {
+            this.is = is;
+        }
+
+        private boolean fill() throws IOException {
+            int read = is.read(buffer, 0, buffer.length);
+            if (read < 1) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= limit && !fill()) {
+                return -1;
+            }
+            return 0xff & buffer[position++];
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= limit) {
+                if (len >= buffer.length) {
+                    return is.read(b, off, len);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long buffered = Math.min(n, limit - position);
+            position += buffered;
+            long remaining = n - buffered;
+            while (remaining > 0) {
+                long skipped = is.skip(remaining);
+                if (skipped < 1) {
+                    // some streams can't skip, read instead.
+                    if (!fill()) {
+                        break;
+                    }
+                    int count = (int) Math.min(remaining, limit);
+                    position = count;
+                    skipped = count;
+                }
+                remaining -= skipped;
+            }
+            return n - remaining;
+        }
+
+        /**
+         * Returns the 16-bit marker following the next 0xff byte that is
+         * not itself followed by 0xff.
+         */
+        int nextMarker() throws IOException {
+            int previous = 0;
+            while (true) {
+                if (position >= limit && !fill()) {
+                    throw new IOException("Could not read marker");
+                }
+                int b = 0xff & buffer[position++];
+                if (previous == 0xff && b != 0xff) {
+                    return 0xff00 | b;
+                }
+                previous = b;
+            }
+        }
+    }
+
     public void traverseJFIF(ByteSource byteSource, Visitor visitor)
             throws ImageReadException,
             // ImageWriteException,
             IOException {
         InputStream is = null;
+        StreamingVisitor streamingVisitor = null;
+        if (visitor instanceof StreamingVisitor) {
+            streamingVisitor = (StreamingVisitor) visitor;
+        }
 
         try {
             is = byteSource.getInputStream();
+            SegmentReader reader = new SegmentReader(is);
 
-            readAndVerifyBytes(is, SOI,
+            readAndVerifyBytes(reader, SOI,
                     "Not a Valid JPEG File: doesn't begin with 0xffd8");
 
-            ByteOrder byteOrder = getByteOrder();
-
             int markerCount;
             for (markerCount = 0; true; markerCount++) {
-                byte[] markerBytes = new byte[2];
-                do {
-                    markerBytes[0] = markerBytes[1];
-                    markerBytes[1] = readByte("marker", is,
-                            "Could not read marker");
-                } while ((0xff & markerBytes[0]) != 0xff
-                        || (0xff & markerBytes[1]) == 0xff);
-                int marker = ((0xff & markerBytes[0]) << 8)
-                        | (0xff & markerBytes[1]);
+                int marker = reader.nextMarker();
+                byte[] markerBytes = { (byte) (marker >> 8), (byte) marker };
 
                 // Debug.debug("marker", marker + " (0x" +
                 // Integer.toHexString(marker) + ")");
-                // Debug.debug("markerBytes", markerBytes);
 
                 if (marker == EOIMarker || marker == SOS_Marker) {
                     if (!visitor.beginSOS()) {
                         return;
                     }
 
-                    byte imageData[] = getStreamBytes(is);
-                    visitor.visitSOS(marker, markerBytes, imageData);
+                    if (streamingVisitor != null) {
+                        streamingVisitor.visitSOS(marker, markerBytes, reader);
+                    } else {
+                        byte imageData[] = getStreamBytes(reader);
+                        visitor.visitSOS(marker, markerBytes, imageData);
+                    }
                     break;
                 }
 
                 byte segmentLengthBytes[] = readByteArray("segmentLengthBytes",
-                        2, is, "segmentLengthBytes");
-                int segmentLength = convertByteArrayToShort("segmentLength",
-                        segmentLengthBytes, byteOrder);
+                        2, reader, "segmentLengthBytes");
+                int segmentLength = ((0xff & segmentLengthBytes[0]) << 8)
+                        | (0xff & segmentLengthBytes[1]);
+                if (segmentLength < 2) {
+                    throw new ImageReadException("Invalid Segment: length "
+                            + segmentLength);
+                }
 
                 // Debug.debug("segmentLength", segmentLength + " (0x" +
                 // Integer.toHexString(segmentLength) + ")");
-                // Debug.debug("segmentLengthBytes", segmentLengthBytes);
+
+                if (streamingVisitor != null
+                        && !streamingVisitor.readSegment(marker)) {
+                    if (reader.skip(segmentLength - 2) != segmentLength - 2) {
+                        throw new IOException(
+                                "Invalid Segment: insufficient data");
+                    }
+                    continue;
+                }
 
                 byte segmentData[] = readByteArray("Segment Data",
-                        segmentLength - 2, is,
+                        segmentLength - 2, reader,
                         "Invalid Segment: insufficient data");
 
-                // Debug.debug("segmentLength", segmentLength);
-
                 if (!visitor.visitSegment(marker, markerBytes, segmentLength,
                         segmentLengthBytes, segmentData)) {
                     return;
                 }
             }
-            
+
             Debug.debug("" + markerCount + " markers");
 
         } finally {
@@ -91,6 +91,13 @@ public class Dct {
     private static final float Q = C2 - C6;
     private static final float R = C2 + C6;
 
+    // the 8 point IDCT basis at the centres of 4 and 2 samples:
+    // C(u) / 2 * cos(k * pi / 8)
+    private static final float R0 = (float) (0.5 / Math.sqrt(2.0));
+    private static final float R1 = (float) (0.5 * Math.cos(Math.PI / 8.0));
+    private static final float R2 = (float) (0.5 * Math.cos(2.0 * Math.PI / 8.0));
+    private static final float R3 = (float) (0.5 * Math.cos(3.0 * Math.PI / 8.0));
+
     public static void scaleQuantizationVector(float[] vector) {
         for (int x = 0; x < 8; x++) {
             vector[x] *= dctScalingFactors[x];
@@ -295,6 +302,54 @@ public class Dct {
         vector[7] = m4 - a7;
     }
 
+    /*
+     * The reduced inverse DCTs used to decode images at 1/2 and 1/4 of their
+     * size. They take the top-left 4x4 or 2x2 coefficients of a dequantized,
+     * unscaled 8x8 block in natural order, and give the value of the full
+     * inverse DCT, without the dropped frequencies, at the centre of each 2x2
+     * or 4x4 square of pixels. The rows are transformed in place.
+     */
+
+    public static void reducedInverseDCT4x4(float[] matrix, float[] result) {
+        float e0, e1, o0, o1;
+        for (int i = 0; i < 4; i++) {
+            e0 = R0 * matrix[8 * i] + R2 * matrix[8 * i + 2];
+            e1 = R0 * matrix[8 * i] - R2 * matrix[8 * i + 2];
+            o0 = R1 * matrix[8 * i + 1] + R3 * matrix[8 * i + 3];
+            o1 = R3 * matrix[8 * i + 1] - R1 * matrix[8 * i + 3];
+            matrix[8 * i] = e0 + o0;
+            matrix[8 * i + 1] = e1 + o1;
+            matrix[8 * i + 2] = e1 - o1;
+            matrix[8 * i + 3] = e0 - o0;
+        }
+        for (int i = 0; i < 4; i++) {
+            e0 = R0 * matrix[i] + R2 * matrix[16 + i];
+            e1 = R0 * matrix[i] - R2 * matrix[16 + i];
+            o0 = R1 * matrix[8 + i] + R3 * matrix[24 + i];
+            o1 = R3 * matrix[8 + i] - R1 * matrix[24 + i];
+            result[i] = e0 + o0;
+            result[4 + i] = e1 + o1;
+            result[8 + i] = e1 - o1;
+            result[12 + i] = e0 - o0;
+        }
+    }
+
+    public static void reducedInverseDCT2x2(float[] matrix, float[] result) {
+        float e, o;
+        for (int i = 0; i < 2; i++) {
+            e = R0 * matrix[8 * i];
+            o = R2 * matrix[8 * i + 1];
+            matrix[8 * i] = e + o;
+            matrix[8 * i + 1] = e - o;
+        }
+        for (int i = 0; i < 2; i++) {
+            e = R0 * matrix[i];
+            o = R2 * matrix[8 + i];
+            result[i] = e + o;
+            result[2 + i] = e - o;
+        }
+    }
+
     public static void inverseDCT8x8(float[] matrix) {
         float a2, a3, a4, tmp1, tmp2, a5, a6, a7;
         float tmp4, neg_b4, b6, b2, b5;
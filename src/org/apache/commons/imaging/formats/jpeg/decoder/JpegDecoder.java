@@ -22,8 +22,11 @@ import java.awt.image.DirectColorModel;
 import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.common.BinaryFileParser;
@@ -34,11 +37,12 @@ import org.apache.commons.imaging.formats.jpeg.JpegUtils;
 import org.apache.commons.imaging.formats.jpeg.ZigZag;
 import org.apache.commons.imaging.formats.jpeg.segments.DhtSegment;
 import org.apache.commons.imaging.formats.jpeg.segments.DqtSegment;
+import org.apache.commons.imaging.formats.jpeg.segments.DriSegment;
 import org.apache.commons.imaging.formats.jpeg.segments.SofnSegment;
 import org.apache.commons.imaging.formats.jpeg.segments.SosSegment;
 
-public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
-        JpegConstants {
+public class JpegDecoder extends BinaryFileParser implements
+        JpegUtils.StreamingVisitor, JpegConstants {
     /*
      * JPEG is an advanced image format that takes significant computation to
      * decode. Keep decoding fast: - Don't allocate memory inside loops,
@@ -46,24 +50,108 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
      * block (using lookup tables for YCbCr->RGB conversion doubled
      * performance). - Math.round() is slow, use (int)(x+0.5f) instead for
      * positive numbers.
+     * 
+     * Images with restart intervals have their entropy coded data split at
+     * the RSTn markers, and the intervals are decoded in parallel.
+     * 
+     * Progressive images are decoded scan by scan into planes of quantized
+     * coefficients, 16 bits each, which are transformed once the last scan,
+     * or the last one asked for, is read. At 1/8 only the DC scans are
+     * decoded.
      */
 
+    // the fewest MCUs decoded by one task of the pool
+    private static final int MIN_TASK_MCUS = 128;
+    private static ForkJoinPool pool = null;
+
     private DqtSegment.QuantizationTable[] quantizationTables = new DqtSegment.QuantizationTable[4];
     private DhtSegment.HuffmanTable[] huffmanDCTables = new DhtSegment.HuffmanTable[4];
     private DhtSegment.HuffmanTable[] huffmanACTables = new DhtSegment.HuffmanTable[4];
     private SofnSegment sofnSegment;
     private SosSegment sosSegment;
     private float[][] scaledQuantizationTables = new float[4][];
+    private int[][] quantizationMatrices = new int[4][];
+    private final int scale;
+    private final int maxScans;
+    private int restartInterval = 0;
+    // the scan being decoded: MCU size in the output image, image size,
+    // MCUs per row and column and the raster they are written to
+    private int hSize;
+    private int vSize;
+    private int width;
+    private int height;
+    private int xMCUs;
+    private int yMCUs;
+    private DataBuffer dataBuffer;
+    // the error of the first interval that failed to decode
+    private Exception intervalException = null;
+    private int failedInterval = Integer.MAX_VALUE;
+    // the progressive image being decoded: one plane per frame component of
+    // the coefficients of each block in zig-zag order, blocks in MCU rows;
+    // only the DC coefficient is kept at 1/8
+    private short[][] coefficients;
+    private int coefficientsPerBlock;
+    private int[] progressivePreds;
+    private int eobrun;
     private BufferedImage image = null;
     private ImageReadException imageReadException = null;
     private IOException ioException = null;
+    private static final int[] sofnSegments = { SOF0Marker, SOF1Marker,
+            SOF2Marker, SOF3Marker, SOF5Marker, SOF6Marker, SOF7Marker,
+            SOF9Marker, SOF10Marker, SOF11Marker, SOF13Marker, SOF14Marker,
+            SOF15Marker, };
+
+    public JpegDecoder() {
+        this(1);
+    }
+
+    /**
+     * @param scale
+     *            1, 2, 4 or 8: the image is decoded at 1/scale of its size
+     */
+    public JpegDecoder(int scale) {
+        this(scale, 0);
+    }
+
+    /**
+     * @param scale
+     *            1, 2, 4 or 8: the image is decoded at 1/scale of its size
+     * @param maxScans
+     *            the number of scans of a progressive image decoded before
+     *            the image is output, for a faster but coarser image; 0 to
+     *            decode all of them
+     */
+    public JpegDecoder(int scale, int maxScans) {
+        if (!isValidScale(scale)) {
+            throw new IllegalArgumentException("Invalid scale " + scale);
+        }
+        if (maxScans < 0) {
+            throw new IllegalArgumentException("Invalid number of scans "
+                    + maxScans);
+        }
+        this.scale = scale;
+        this.maxScans = maxScans;
+    }
+
+    public static boolean isValidScale(int scale) {
+        return scale == 1 || scale == 2 || scale == 4 || scale == 8;
+    }
 
     public boolean beginSOS() {
         return true;
     }
 
+    public boolean readSegment(int marker) {
+        return marker == DQTMarker || marker == DHTMarker
+                || marker == DRIMarker
+                || Arrays.binarySearch(sofnSegments, marker) >= 0;
+    }
+
     public void visitSOS(int marker, byte markerBytes[], byte imageData[]) {
-        ByteArrayInputStream is = new ByteArrayInputStream(imageData);
+        visitSOS(marker, markerBytes, new ByteArrayInputStream(imageData));
+    }
+
+    public void visitSOS(int marker, byte markerBytes[], InputStream is) {
         try {
             int segmentLength = read2Bytes("segmentLength", is,
                     "Not a Valid JPEG File");
@@ -79,31 +167,26 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
                 vMax = Math.max(vMax,
                         sofnSegment.components[i].verticalSamplingFactor);
             }
-            int hSize = 8 * hMax;
-            int vSize = 8 * vMax;
+            hSize = 8 * hMax / scale;
+            vSize = 8 * vMax / scale;
+            width = (sofnSegment.width + scale - 1) / scale;
+            height = (sofnSegment.height + scale - 1) / scale;
 
-            JpegInputStream bitInputStream = new JpegInputStream(is);
-            int xMCUs = (sofnSegment.width + hSize - 1) / hSize;
-            int yMCUs = (sofnSegment.height + vSize - 1) / vSize;
-            Block[] mcu = allocateMCUMemory();
-            Block[] scaledMCU = new Block[mcu.length];
-            for (int i = 0; i < scaledMCU.length; i++) {
-                scaledMCU[i] = new Block(hSize, vSize);
-            }
-            int[] preds = new int[sofnSegment.numberOfComponents];
+            xMCUs = (sofnSegment.width + 8 * hMax - 1) / (8 * hMax);
+            yMCUs = (sofnSegment.height + 8 * vMax - 1) / (8 * vMax);
             ColorModel colorModel;
             WritableRaster raster;
             if (sofnSegment.numberOfComponents == 3) {
                 colorModel = new DirectColorModel(24, 0x00ff0000, 0x0000ff00,
                         0x000000ff);
                 raster = WritableRaster.createPackedRaster(DataBuffer.TYPE_INT,
-                        sofnSegment.width, sofnSegment.height, new int[] {
+                        width, height, new int[] {
                                 0x00ff0000, 0x0000ff00, 0x000000ff }, null);
             } else if (sofnSegment.numberOfComponents == 1) {
                 colorModel = new DirectColorModel(24, 0x00ff0000, 0x0000ff00,
                         0x000000ff);
                 raster = WritableRaster.createPackedRaster(DataBuffer.TYPE_INT,
-                        sofnSegment.width, sofnSegment.height, new int[] {
+                        width, height, new int[] {
                                 0x00ff0000, 0x0000ff00, 0x000000ff }, null);
                 // FIXME: why do images come out too bright with CS_GRAY?
                 // colorModel = new ComponentColorModel(
@@ -115,38 +198,15 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
                 throw new ImageReadException(sofnSegment.numberOfComponents
                         + " components are invalid or unsupported");
             }
-            DataBuffer dataBuffer = raster.getDataBuffer();
+            dataBuffer = raster.getDataBuffer();
 
-            for (int y1 = 0; y1 < vSize * yMCUs; y1 += vSize) {
-                for (int x1 = 0; x1 < hSize * xMCUs; x1 += hSize) {
-                    readMCU(bitInputStream, preds, mcu);
-                    rescaleMCU(mcu, hSize, vSize, scaledMCU);
-                    int srcRowOffset = 0;
-                    int dstRowOffset = y1 * sofnSegment.width + x1;
-                    for (int y2 = 0; y2 < vSize && y1 + y2 < sofnSegment.height; y2++) {
-                        for (int x2 = 0; x2 < hSize
-                                && x1 + x2 < sofnSegment.width; x2++) {
-                            if (scaledMCU.length == 3) {
-                                int Y = scaledMCU[0].samples[srcRowOffset + x2];
-                                int Cb = scaledMCU[1].samples[srcRowOffset + x2];
-                                int Cr = scaledMCU[2].samples[srcRowOffset + x2];
-                                int rgb = YCbCrConverter.convertYCbCrToRGB(Y,
-                                        Cb, Cr);
-                                dataBuffer.setElem(dstRowOffset + x2, rgb);
-                            } else if (mcu.length == 1) {
-                                int Y = scaledMCU[0].samples[srcRowOffset + x2];
-                                dataBuffer.setElem(dstRowOffset + x2, (Y << 16)
-                                        | (Y << 8) | Y);
-                            } else {
-                                throw new ImageReadException(
-                                        "Unsupported JPEG with " + mcu.length
-                                                + " components");
-                            }
-                        }
-                        srcRowOffset += hSize;
-                        dstRowOffset += sofnSegment.width;
-                    }
-                }
+            if (sofnSegment.marker == SOF2Marker) {
+                decodeProgressive(getStreamBytes(is));
+            } else if (restartInterval == 0) {
+                new McuDecoder(scanFrameComponents()).decodeMCUs(
+                        new JpegInputStream(is), 0, xMCUs * yMCUs);
+            } else {
+                decodeIntervals(getStreamBytes(is), xMCUs * yMCUs);
             }
             image = new BufferedImage(colorModel, raster,
                     colorModel.isAlphaPremultiplied(), new Properties());
@@ -167,20 +227,442 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
         }
     }
 
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    /**
+     * Finds the restart intervals of the entropy coded data starting at
+     * position, as many as starts and ends hold, and returns the position of
+     * the marker that ends the data, or the end of the array. Each interval
+     * starts on a byte boundary after the RSTn marker of the previous one.
+     */
+    private int findIntervals(byte data[], int position, int starts[],
+            int ends[]) throws ImageReadException {
+        int intervals = starts.length;
+        int count = 0;
+        int marker = EOIMarker;
+        starts[0] = position;
+        while (count < intervals) {
+            if (position + 1 >= data.length) {
+                // no marker at the end
+                ends[count++] = data.length;
+                break;
+            }
+            if (data[position] != (byte) 0xff) {
+                position++;
+                continue;
+            }
+            int next = 0xff & data[position + 1];
+            if (next == 0 || next == 0xff) {
+                // stuffed zero byte, or fill byte before a marker
+                position++;
+            } else if (next >= (0xff & RST0Marker)
+                    && next <= (0xff & RST7Marker)) {
+                ends[count++] = position;
+                position += 2;
+                if (count < intervals) {
+                    starts[count] = position;
+                }
+            } else {
+                // EOI, or the end of a truncated scan
+                ends[count++] = position;
+                marker = 0xff00 | next;
+                break;
+            }
+        }
+        if (count < intervals) {
+            if (marker == EOIMarker) {
+                throw new ImageReadException("Premature End of File");
+            }
+            throw new ImageReadException(
+                    "Invalid marker found in entropy data");
+        }
+        return ends[intervals - 1];
+    }
+
+    /**
+     * Decodes the entropy coded data of a scan with restart intervals. The
+     * DC predictions are reset at each interval, so they are decoded
+     * independently, into their own MCUs of the raster.
+     */
+    private void decodeIntervals(byte data[], int mcus)
+            throws ImageReadException, IOException {
+        int intervals = (mcus + restartInterval - 1) / restartInterval;
+        int starts[] = new int[intervals];
+        int ends[] = new int[intervals];
+        findIntervals(data, 0, starts, ends);
+
+        int grain = Math.max(1, MIN_TASK_MCUS / restartInterval);
+        getPool().invoke(new IntervalTask(data, starts, ends, mcus, 0,
+                intervals, grain));
+        if (intervalException instanceof ImageReadException) {
+            throw (ImageReadException) intervalException;
+        } else if (intervalException instanceof IOException) {
+            throw (IOException) intervalException;
+        } else if (intervalException != null) {
+            throw (RuntimeException) intervalException;
+        }
+    }
+
+    private synchronized void intervalFailed(int interval, Exception e) {
+        if (interval < failedInterval) {
+            failedInterval = interval;
+            intervalException = e;
+        }
+    }
+
+    /**
+     * Decodes the restart intervals from first to last, splitting them
+     * between tasks of the pool down to grain intervals per task.
+     */
+    private class IntervalTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte data[];
+        private final int starts[];
+        private final int ends[];
+        private final int mcus;
+        private final int first;
+        private final int last;
+        private final int grain;
+
+        IntervalTask(byte data[], int starts[], int ends[], int mcus,
+                int first, int last, int grain) {
+            this.data = data;
+            this.starts = starts;
+            this.ends = ends;
+            this.mcus = mcus;
+            this.first = first;
+            this.last = last;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > grain) {
+                int middle = (first + last) >>> 1;
+                invokeAll(new IntervalTask(data, starts, ends, mcus, first,
+                        middle, grain), new IntervalTask(data, starts, ends,
+                        mcus, middle, last, grain));
+                return;
+            }
+            int interval = first;
+            try {
+                McuDecoder decoder = new McuDecoder(scanFrameComponents());
+                for (; interval < last; interval++) {
+                    int firstMCU = interval * restartInterval;
+                    decoder.decodeMCUs(new JpegInputStream(data, starts[interval],
+                            ends[interval] - starts[interval]), firstMCU,
+                            Math.min(restartInterval, mcus - firstMCU));
+                }
+            } catch (ImageReadException e) {
+                intervalFailed(interval, e);
+            } catch (IOException e) {
+                intervalFailed(interval, e);
+            } catch (RuntimeException e) {
+                intervalFailed(interval, e);
+            }
+        }
+    }
+
+    /**
+     * Decodes the scans of a progressive image, from the data of the first
+     * one, then transforms the coefficients to the raster. The segments
+     * between the scans are read here, as the traversal stops at the first
+     * scan.
+     */
+    private void decodeProgressive(byte data[])
+            throws ImageReadException, IOException {
+        coefficientsPerBlock = scale == 8 ? 1 : 64;
+        coefficients = new short[sofnSegment.numberOfComponents][];
+        for (int c = 0; c < coefficients.length; c++) {
+            SofnSegment.Component component = sofnSegment.components[c];
+            coefficients[c] = new short[coefficientsPerBlock * xMCUs
+                    * component.horizontalSamplingFactor * yMCUs
+                    * component.verticalSamplingFactor];
+        }
+        progressivePreds = new int[sofnSegment.numberOfComponents];
+
+        int position = 0;
+        int scans = 0;
+        while (true) {
+            position = decodeScan(data, position);
+            scans++;
+            if (scans == maxScans) {
+                break;
+            }
+            position = readSegmentsToScan(data, position);
+            if (position < 0) {
+                break;
+            }
+        }
+
+        new McuDecoder(sofnSegment.components).outputMCUs(coefficients,
+                coefficientsPerBlock, 0, xMCUs * yMCUs);
+        coefficients = null;
+    }
+
+    /**
+     * Reads the segments from the marker at position up to the next scan,
+     * and returns the position of its entropy coded data, or -1 at the end
+     * of the image.
+     */
+    private int readSegmentsToScan(byte data[], int position)
+            throws ImageReadException, IOException {
+        while (position + 1 < data.length) {
+            if (data[position] != (byte) 0xff) {
+                throw new ImageReadException("Not a Valid JPEG File");
+            }
+            int marker = 0xff00 | (0xff & data[position + 1]);
+            position += 2;
+            if (marker == 0xffff) {
+                // fill byte
+                position--;
+                continue;
+            } else if (marker == EOIMarker) {
+                return -1;
+            }
+            if (position + 2 > data.length) {
+                throw new ImageReadException("Premature End of File");
+            }
+            int segmentLength = ((0xff & data[position]) << 8)
+                    | (0xff & data[position + 1]);
+            if (segmentLength < 2 || position + segmentLength > data.length) {
+                throw new ImageReadException("Premature End of File");
+            }
+            byte segmentData[] = Arrays.copyOfRange(data, position + 2,
+                    position + segmentLength);
+            position += segmentLength;
+            if (marker == SOS_Marker) {
+                sosSegment = new SosSegment(marker, segmentData);
+                return position;
+            } else if (marker == DHTMarker || marker == DQTMarker
+                    || marker == DRIMarker) {
+                visitSegment(marker, null, segmentLength, null, segmentData);
+            }
+        }
+        // no EOI
+        return -1;
+    }
+
+    /**
+     * Decodes a scan of a progressive image into the coefficient planes and
+     * returns the position of the marker that ends it. A scan of several
+     * components has the blocks of the MCUs interleaved; a scan of one
+     * component has its blocks in rows, without those padding the MCUs.
+     */
+    private int decodeScan(byte data[], int position)
+            throws ImageReadException, IOException {
+        int ss = sosSegment.startOfSpectralSelection;
+        int se = sosSegment.endOfSpectralSelection;
+        if (ss > se || se > 63 || (ss == 0 && se != 0)
+                || (ss != 0 && sosSegment.numberOfComponents != 1)) {
+            throw new ImageReadException("Invalid progressive scan");
+        }
+        int[] indexes = scanComponentIndexes();
+        SofnSegment.Component[] components = scanFrameComponents();
+
+        int mcus = xMCUs * yMCUs;
+        int blocksPerRow = 0;
+        int blocksPerLine = 0;
+        if (components.length == 1) {
+            int hMax = 0;
+            int vMax = 0;
+            for (int i = 0; i < sofnSegment.numberOfComponents; i++) {
+                hMax = Math.max(hMax,
+                        sofnSegment.components[i].horizontalSamplingFactor);
+                vMax = Math.max(vMax,
+                        sofnSegment.components[i].verticalSamplingFactor);
+            }
+            int componentWidth = (sofnSegment.width
+                    * components[0].horizontalSamplingFactor + hMax - 1)
+                    / hMax;
+            int componentHeight = (sofnSegment.height
+                    * components[0].verticalSamplingFactor + vMax - 1)
+                    / vMax;
+            blocksPerRow = (componentWidth + 7) / 8;
+            blocksPerLine = xMCUs * components[0].horizontalSamplingFactor;
+            mcus = blocksPerRow * ((componentHeight + 7) / 8);
+        }
+
+        int perInterval = restartInterval == 0 ? mcus : restartInterval;
+        int intervals = (mcus + perInterval - 1) / perInterval;
+        int starts[] = new int[intervals];
+        int ends[] = new int[intervals];
+        int end = findIntervals(data, position, starts, ends);
+        if (scale == 8 && ss != 0) {
+            // only the DC coefficients are used
+            return end;
+        }
+
+        for (int interval = 0; interval < intervals; interval++) {
+            JpegInputStream is = new JpegInputStream(data, starts[interval],
+                    ends[interval] - starts[interval]);
+            Arrays.fill(progressivePreds, 0);
+            eobrun = 0;
+            int first = interval * perInterval;
+            int last = Math.min(mcus, first + perInterval);
+            for (int m = first; m < last; m++) {
+                if (components.length == 1) {
+                    decodeBlock(is, 0, coefficients[indexes[0]],
+                            coefficientsPerBlock * ((m / blocksPerRow) * blocksPerLine + m
+                                    % blocksPerRow));
+                    continue;
+                }
+                int mcuX = m % xMCUs;
+                int mcuY = m / xMCUs;
+                for (int i = 0; i < components.length; i++) {
+                    SofnSegment.Component component = components[i];
+                    int componentBlocksPerLine = xMCUs
+                            * component.horizontalSamplingFactor;
+                    for (int y = 0; y < component.verticalSamplingFactor; y++) {
+                        for (int x = 0; x < component.horizontalSamplingFactor; x++) {
+                            decodeBlock(is, i, coefficients[indexes[i]],
+                                    coefficientsPerBlock * ((mcuY * component.verticalSamplingFactor + y)
+                                            * componentBlocksPerLine + mcuX
+                                            * component.horizontalSamplingFactor + x));
+                        }
+                    }
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Decodes the coefficients of the scan of one block, at offset in the
+     * plane of its component, i being the component in the scan. See G.1.2
+     * of T.81.
+     */
+    private void decodeBlock(JpegInputStream is, int i, short plane[],
+            int offset) throws IOException, ImageReadException {
+        SosSegment.Component scanComponent = sosSegment.components[i];
+        int ss = sosSegment.startOfSpectralSelection;
+        int se = sosSegment.endOfSpectralSelection;
+        int ah = sosSegment.successiveApproximationBitHigh;
+        int al = sosSegment.successiveApproximationBitLow;
+
+        if (ss == 0) {
+            if (ah == 0) {
+                int t = decode(is,
+                        huffmanDCTables[scanComponent.dcCodingTableSelector]);
+                int diff = extend(receive(t, is), t);
+                progressivePreds[i] += diff;
+                plane[offset] = (short) (progressivePreds[i] * (1 << al));
+            } else if (is.readBits(1) != 0) {
+                plane[offset] |= 1 << al;
+            }
+            return;
+        }
+
+        DhtSegment.HuffmanTable acTable = huffmanACTables[scanComponent.acCodingTableSelector];
+        if (ah == 0) {
+            // first scan of the band
+            if (eobrun > 0) {
+                eobrun--;
+                return;
+            }
+            for (int k = ss; k <= se;) {
+                int rs = decode(is, acTable);
+                int s = rs & 0xf;
+                int r = rs >> 4;
+                if (s == 0) {
+                    if (r < 15) {
+                        // end of band, for this block and the next eobrun
+                        eobrun = (1 << r) - 1;
+                        if (r > 0) {
+                            eobrun += is.readBits(r);
+                        }
+                        break;
+                    }
+                    k += 16;
+                } else {
+                    k += r;
+                    if (k > 63) {
+                        throw new ImageReadException("Invalid AC coefficient");
+                    }
+                    plane[offset + k] = (short) (extend(receive(s, is), s) * (1 << al));
+                    k++;
+                }
+            }
+            return;
+        }
+
+        // refinement: a bit for each coefficient already non-zero, and the
+        // new coefficients of magnitude 1
+        int p1 = 1 << al;
+        int m1 = -1 << al;
+        int k = ss;
+        if (eobrun == 0) {
+            for (; k <= se; k++) {
+                int rs = decode(is, acTable);
+                int s = rs & 0xf;
+                int r = rs >> 4;
+                int value = 0;
+                if (s == 0) {
+                    if (r < 15) {
+                        eobrun = 1 << r;
+                        if (r > 0) {
+                            eobrun += is.readBits(r);
+                        }
+                        break;
+                    }
+                    // 16 zero coefficients
+                } else {
+                    value = is.readBits(1) != 0 ? p1 : m1;
+                }
+                while (k <= se) {
+                    int coefficient = plane[offset + k];
+                    if (coefficient != 0) {
+                        refine(is, plane, offset + k, p1, m1);
+                    } else {
+                        if (r == 0) {
+                            break;
+                        }
+                        r--;
+                    }
+                    k++;
+                }
+                if (value != 0 && k <= se) {
+                    plane[offset + k] = (short) value;
+                }
+            }
+        }
+        if (eobrun > 0) {
+            // end of band: only the corrections
+            for (; k <= se; k++) {
+                if (plane[offset + k] != 0) {
+                    refine(is, plane, offset + k, p1, m1);
+                }
+            }
+            eobrun--;
+        }
+    }
+
+    private void refine(JpegInputStream is, short plane[], int index, int p1,
+            int m1) throws IOException, ImageReadException {
+        int coefficient = plane[index];
+        if (is.readBits(1) != 0 && (coefficient & p1) == 0) {
+            plane[index] = (short) (coefficient + (coefficient >= 0 ? p1 : m1));
+        }
+    }
+
     public boolean visitSegment(int marker, byte[] markerBytes,
             int segmentLength, byte[] segmentLengthBytes, byte[] segmentData)
             throws ImageReadException, IOException {
-        final int[] sofnSegments = { SOF0Marker, SOF1Marker, SOF2Marker,
-                SOF3Marker, SOF5Marker, SOF6Marker, SOF7Marker, SOF9Marker,
-                SOF10Marker, SOF11Marker, SOF13Marker, SOF14Marker,
-                SOF15Marker, };
-
         if (Arrays.binarySearch(sofnSegments, marker) >= 0) {
-            if (marker != SOF0Marker) {
-                throw new ImageReadException("Only sequential, baseline JPEGs "
-                        + "are supported at the moment");
+            if (marker != SOF0Marker && marker != SOF2Marker) {
+                throw new ImageReadException("Only sequential, baseline and "
+                        + "progressive JPEGs are supported at the moment");
             }
             sofnSegment = new SofnSegment(marker, segmentData);
+            if (marker == SOF2Marker && sofnSegment.precision != 8) {
+                throw new ImageReadException(sofnSegment.precision
+                        + "-bit progressive JPEGs are not supported");
+            }
         } else if (marker == DQTMarker) {
             DqtSegment dqtSegment = new DqtSegment(marker, segmentData);
             for (int i = 0; i < dqtSegment.quantizationTables.size(); i++) {
@@ -195,6 +677,7 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
                 quantizationTables[table.destinationIdentifier] = table;
                 int[] quantizationMatrixInt = new int[64];
                 ZigZag.zigZagToBlock(table.elements, quantizationMatrixInt);
+                quantizationMatrices[table.destinationIdentifier] = quantizationMatrixInt;
                 float[] quantizationMatrixFloat = new float[64];
                 for (int j = 0; j < 64; j++) {
                     quantizationMatrixFloat[j] = quantizationMatrixInt[j];
@@ -202,6 +685,9 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
                 Dct.scaleDequantizationMatrix(quantizationMatrixFloat);
                 scaledQuantizationTables[table.destinationIdentifier] = quantizationMatrixFloat;
             }
+        } else if (marker == DRIMarker) {
+            DriSegment driSegment = new DriSegment(marker, segmentData);
+            restartInterval = driSegment.restartInterval;
         } else if (marker == DHTMarker) {
             DhtSegment dhtSegment = new DhtSegment(marker, segmentData);
             for (int i = 0; i < dhtSegment.huffmanTables.size(); i++) {
@@ -263,120 +749,257 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
         }
     }
 
-    private Block[] allocateMCUMemory() throws ImageReadException {
-        Block[] mcu = new Block[sosSegment.numberOfComponents];
+    // the index in the frame of each component of the scan
+    private int[] scanComponentIndexes() throws ImageReadException {
+        int[] indexes = new int[sosSegment.numberOfComponents];
         for (int i = 0; i < sosSegment.numberOfComponents; i++) {
             SosSegment.Component scanComponent = sosSegment.components[i];
-            SofnSegment.Component frameComponent = null;
+            indexes[i] = -1;
             for (int j = 0; j < sofnSegment.numberOfComponents; j++) {
                 if (sofnSegment.components[j].componentIdentifier == scanComponent.scanComponentSelector) {
-                    frameComponent = sofnSegment.components[j];
+                    indexes[i] = j;
                     break;
                 }
             }
-            if (frameComponent == null) {
+            if (indexes[i] < 0) {
                 throw new ImageReadException("Invalid component");
             }
+        }
+        return indexes;
+    }
+
+    private SofnSegment.Component[] scanFrameComponents()
+            throws ImageReadException {
+        int[] indexes = scanComponentIndexes();
+        SofnSegment.Component[] components = new SofnSegment.Component[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            components[i] = sofnSegment.components[indexes[i]];
+        }
+        return components;
+    }
+
+    private Block[] allocateMCUMemory(SofnSegment.Component[] components) {
+        Block[] mcu = new Block[components.length];
+        for (int i = 0; i < components.length; i++) {
             Block fullBlock = new Block(
-                    8 * frameComponent.horizontalSamplingFactor,
-                    8 * frameComponent.verticalSamplingFactor);
+                    8 * components[i].horizontalSamplingFactor / scale,
+                    8 * components[i].verticalSamplingFactor / scale);
             mcu[i] = fullBlock;
         }
         return mcu;
     }
 
-    private int[] zz = new int[64];
-    private int[] blockInt = new int[64];
-    private float[] block = new float[64];
+    /**
+     * Decodes MCUs and writes them to the raster, with its own buffers so
+     * that one can be used by each thread.
+     */
+    private class McuDecoder {
+        // the frame component of each block of the MCU
+        private final SofnSegment.Component[] components;
+        private final Block[] mcu;
+        private final Block[] scaledMCU;
+        private final int[] preds = new int[sofnSegment.numberOfComponents];
+        private final int[] zz = new int[64];
+        private final int[] blockInt = new int[64];
+        private final float[] block = new float[64];
+        private final float[] reducedBlock = new float[16];
 
-    private void readMCU(JpegInputStream is, int[] preds, Block[] mcu)
-            throws IOException, ImageReadException {
-        for (int i = 0; i < sosSegment.numberOfComponents; i++) {
-            SosSegment.Component scanComponent = sosSegment.components[i];
-            SofnSegment.Component frameComponent = null;
-            for (int j = 0; j < sofnSegment.numberOfComponents; j++) {
-                if (sofnSegment.components[j].componentIdentifier == scanComponent.scanComponentSelector) {
-                    frameComponent = sofnSegment.components[j];
-                    break;
+        McuDecoder(SofnSegment.Component[] components) {
+            this.components = components;
+            mcu = allocateMCUMemory(components);
+            scaledMCU = new Block[mcu.length];
+            for (int i = 0; i < scaledMCU.length; i++) {
+                scaledMCU[i] = new Block(hSize, vSize);
+            }
+        }
+
+        /**
+         * Decodes count MCUs from is, starting at MCU first of the image,
+         * with the DC predictions reset.
+         */
+        void decodeMCUs(JpegInputStream is, int first, int count)
+                throws IOException, ImageReadException {
+            Arrays.fill(preds, 0);
+            for (int i = first; i < first + count; i++) {
+                readMCU(is);
+                rescaleMCU(mcu, hSize, vSize, scaledMCU);
+                writeMCU(hSize * (i % xMCUs), vSize * (i / xMCUs));
+            }
+        }
+
+        /**
+         * Writes count MCUs starting at MCU first of the image, from the
+         * coefficients of a progressive image. The components are those of
+         * the frame.
+         */
+        void outputMCUs(short[][] coefficients, int coefficientsPerBlock,
+                int first, int count) throws ImageReadException {
+            for (int i = first; i < first + count; i++) {
+                int mcuX = i % xMCUs;
+                int mcuY = i / xMCUs;
+                for (int c = 0; c < components.length; c++) {
+                    SofnSegment.Component component = components[c];
+                    short[] plane = coefficients[c];
+                    int blocksPerLine = xMCUs
+                            * component.horizontalSamplingFactor;
+                    for (int y = 0; y < component.verticalSamplingFactor; y++) {
+                        int offset = coefficientsPerBlock * ((mcuY
+                                * component.verticalSamplingFactor + y)
+                                * blocksPerLine + mcuX
+                                * component.horizontalSamplingFactor);
+                        for (int x = 0; x < component.horizontalSamplingFactor; x++) {
+                            for (int k = 0; k < coefficientsPerBlock; k++) {
+                                zz[k] = plane[offset + k];
+                            }
+                            offset += coefficientsPerBlock;
+                            transformBlock(component, mcu[c], x, y);
+                        }
+                    }
                 }
+                rescaleMCU(mcu, hSize, vSize, scaledMCU);
+                writeMCU(hSize * mcuX, vSize * mcuY);
             }
-            if (frameComponent == null) {
-                throw new ImageReadException("Invalid component");
+        }
+
+        private void writeMCU(int x1, int y1) throws ImageReadException {
+            int srcRowOffset = 0;
+            int dstRowOffset = y1 * width + x1;
+            for (int y2 = 0; y2 < vSize && y1 + y2 < height; y2++) {
+                for (int x2 = 0; x2 < hSize && x1 + x2 < width; x2++) {
+                    if (scaledMCU.length == 3) {
+                        int Y = scaledMCU[0].samples[srcRowOffset + x2];
+                        int Cb = scaledMCU[1].samples[srcRowOffset + x2];
+                        int Cr = scaledMCU[2].samples[srcRowOffset + x2];
+                        int rgb = YCbCrConverter.convertYCbCrToRGB(Y, Cb, Cr);
+                        dataBuffer.setElem(dstRowOffset + x2, rgb);
+                    } else if (mcu.length == 1) {
+                        int Y = scaledMCU[0].samples[srcRowOffset + x2];
+                        dataBuffer.setElem(dstRowOffset + x2, (Y << 16)
+                                | (Y << 8) | Y);
+                    } else {
+                        throw new ImageReadException("Unsupported JPEG with "
+                                + mcu.length + " components");
+                    }
+                }
+                srcRowOffset += hSize;
+                dstRowOffset += width;
             }
-            Block fullBlock = mcu[i];
-            for (int y = 0; y < frameComponent.verticalSamplingFactor; y++) {
-                for (int x = 0; x < frameComponent.horizontalSamplingFactor; x++) {
-                    Arrays.fill(zz, 0);
-                    // page 104 of T.81
-                    int t = decode(
-                            is,
-                            huffmanDCTables[scanComponent.dcCodingTableSelector]);
-                    int diff = receive(t, is);
-                    diff = extend(diff, t);
-                    zz[0] = preds[i] + diff;
-                    preds[i] = zz[0];
-
-                    // "Decode_AC_coefficients", figure F.13, page 106 of T.81
-                    int k = 1;
-                    while (true) {
-                        int rs = decode(
+        }
+
+        private void readMCU(JpegInputStream is) throws IOException,
+                ImageReadException {
+            for (int i = 0; i < sosSegment.numberOfComponents; i++) {
+                SosSegment.Component scanComponent = sosSegment.components[i];
+                SofnSegment.Component frameComponent = components[i];
+                Block fullBlock = mcu[i];
+                for (int y = 0; y < frameComponent.verticalSamplingFactor; y++) {
+                    for (int x = 0; x < frameComponent.horizontalSamplingFactor; x++) {
+                        Arrays.fill(zz, 0);
+                        // page 104 of T.81
+                        int t = decode(
                                 is,
-                                huffmanACTables[scanComponent.acCodingTableSelector]);
-                        int ssss = rs & 0xf;
-                        int rrrr = rs >> 4;
-                        int r = rrrr;
-
-                        if (ssss == 0) {
-                            if (r == 15) {
-                                k += 16;
-                            } else {
-                                break;
-                            }
-                        } else {
-                            k += r;
+                                huffmanDCTables[scanComponent.dcCodingTableSelector]);
+                        int diff = receive(t, is);
+                        diff = extend(diff, t);
+                        zz[0] = preds[i] + diff;
+                        preds[i] = zz[0];
 
-                            // "Decode_ZZ(k)", figure F.14, page 107 of T.81
-                            zz[k] = receive(ssss, is);
-                            zz[k] = extend(zz[k], ssss);
+                        // "Decode_AC_coefficients", figure F.13, page 106 of T.81
+                        int k = 1;
+                        while (true) {
+                            int rs = decode(
+                                    is,
+                                    huffmanACTables[scanComponent.acCodingTableSelector]);
+                            int ssss = rs & 0xf;
+                            int rrrr = rs >> 4;
+                            int r = rrrr;
 
-                            if (k == 63) {
-                                break;
+                            if (ssss == 0) {
+                                if (r == 15) {
+                                    k += 16;
+                                } else {
+                                    break;
+                                }
                             } else {
-                                k++;
+                                k += r;
+
+                                // "Decode_ZZ(k)", figure F.14, page 107 of T.81
+                                zz[k] = receive(ssss, is);
+                                zz[k] = extend(zz[k], ssss);
+
+                                if (k == 63) {
+                                    break;
+                                } else {
+                                    k++;
+                                }
                             }
                         }
+
+                        transformBlock(frameComponent, fullBlock, x, y);
                     }
+                }
+            }
+        }
 
-                    final int shift = (1 << (sofnSegment.precision - 1));
-                    final int max = (1 << sofnSegment.precision) - 1;
+        // the samples of the block at x, y of the component from zz
+        private void transformBlock(SofnSegment.Component frameComponent,
+                Block fullBlock, int x, int y) {
+            final int shift = (1 << (sofnSegment.precision - 1));
+            final int max = (1 << sofnSegment.precision) - 1;
 
-                    float[] scaledQuantizationTable = scaledQuantizationTables[frameComponent.quantTabDestSelector];
-                    ZigZag.zigZagToBlock(zz, blockInt);
-                    for (int j = 0; j < 64; j++) {
-                        block[j] = blockInt[j] * scaledQuantizationTable[j];
+            float[] samples;
+            int blockSize = 8 / scale;
+            if (scale == 1) {
+                float[] scaledQuantizationTable = scaledQuantizationTables[frameComponent.quantTabDestSelector];
+                ZigZag.zigZagToBlock(zz, blockInt);
+                for (int j = 0; j < 64; j++) {
+                    block[j] = blockInt[j] * scaledQuantizationTable[j];
+                }
+                Dct.inverseDCT8x8(block);
+                samples = block;
+            } else if (scale == 8) {
+                // the inverse DCT of the DC coefficient alone
+                reducedBlock[0] = zz[0]
+                        * quantizationMatrices[frameComponent.quantTabDestSelector][0]
+                        / 8f;
+                samples = reducedBlock;
+            } else {
+                int[] quantizationMatrix = quantizationMatrices[frameComponent.quantTabDestSelector];
+                ZigZag.zigZagToBlock(zz, blockInt);
+                for (int v = 0; v < blockSize; v++) {
+                    for (int u = 0; u < blockSize; u++) {
+                        block[8 * v + u] = blockInt[8 * v + u]
+                                * quantizationMatrix[8 * v + u];
                     }
-                    Dct.inverseDCT8x8(block);
-
-                    int dstRowOffset = 8 * y * 8
-                            * frameComponent.horizontalSamplingFactor + 8 * x;
-                    int srcNext = 0;
-                    for (int yy = 0; yy < 8; yy++) {
-                        for (int xx = 0; xx < 8; xx++) {
-                            float sample = block[srcNext++];
-                            sample += shift;
-                            int result;
-                            if (sample < 0) {
-                                result = 0;
-                            } else if (sample > max) {
-                                result = max;
-                            } else {
-                                result = fastRound(sample);
-                            }
-                            fullBlock.samples[dstRowOffset + xx] = result;
-                        }
-                        dstRowOffset += 8 * frameComponent.horizontalSamplingFactor;
+                }
+                if (blockSize == 4) {
+                    Dct.reducedInverseDCT4x4(block, reducedBlock);
+                } else {
+                    Dct.reducedInverseDCT2x2(block, reducedBlock);
+                }
+                samples = reducedBlock;
+            }
+
+            int dstRowOffset = blockSize * y * blockSize
+                    * frameComponent.horizontalSamplingFactor
+                    + blockSize * x;
+            int srcNext = 0;
+            for (int yy = 0; yy < blockSize; yy++) {
+                for (int xx = 0; xx < blockSize; xx++) {
+                    float sample = samples[srcNext++];
+                    sample += shift;
+                    int result;
+                    if (sample < 0) {
+                        result = 0;
+                    } else if (sample > max) {
+                        result = max;
+                    } else {
+                        result = fastRound(sample);
                     }
+                    fullBlock.samples[dstRowOffset + xx] = result;
                 }
+                dstRowOffset += blockSize
+                        * frameComponent.horizontalSamplingFactor;
             }
         }
     }
@@ -387,39 +1010,40 @@ public class JpegDecoder extends BinaryFileParser implements JpegUtils.Visitor,
 
     private int extend(int v, int t) {
         // "EXTEND", section F.2.2.1, figure F.12, page 105 of T.81
-        int vt = (1 << (t - 1));
-        while (v < vt) {
-            vt = (-1 << t) + 1;
-            v += vt;
+        if (t == 0 || v >= (1 << (t - 1))) {
+            return v;
         }
-        return v;
+        return v + (-1 << t) + 1;
     }
 
     private int receive(int ssss, JpegInputStream is) throws IOException,
             ImageReadException {
         // "RECEIVE", section F.2.2.4, figure F.17, page 110 of T.81
-        int i = 0;
-        int v = 0;
-        while (i != ssss) {
-            i++;
-            v = (v << 1) + is.nextBit();
-        }
-        return v;
+        return is.readBits(ssss);
     }
 
     private int decode(JpegInputStream is, DhtSegment.HuffmanTable huffmanTable)
             throws IOException, ImageReadException {
-        // "DECODE", section F.2.2.3, figure F.16, page 109 of T.81
-        int i = 1;
-        int code = is.nextBit();
-        while (code > huffmanTable.maxCode[i]) {
-            i++;
-            code = (code << 1) | is.nextBit();
-        }
-        int j = huffmanTable.valPtr[i];
-        j += code - huffmanTable.minCode[i];
-        int value = huffmanTable.huffVal[j];
-        return value;
+        // codes of up to LOOKAHEAD_BITS bits, most of them, take one lookup
+        int lookahead = huffmanTable.lookahead[is
+                .peekBits(DhtSegment.HuffmanTable.LOOKAHEAD_BITS)];
+        if (lookahead != 0) {
+            is.skipBits(lookahead >> 8);
+            return lookahead & 0xff;
+        }
+        // "DECODE", section F.2.2.3, figure F.16, page 109 of T.81, on the
+        // longer codes
+        int bits = is.peekBits(16);
+        for (int i = DhtSegment.HuffmanTable.LOOKAHEAD_BITS + 1; i <= 16; i++) {
+            int code = bits >>> (16 - i);
+            if (code <= huffmanTable.maxCode[i]) {
+                is.skipBits(i);
+                int j = huffmanTable.valPtr[i];
+                j += code - huffmanTable.minCode[i];
+                return huffmanTable.huffVal[j];
+            }
+        }
+        throw new ImageReadException("Invalid Huffman code");
     }
 
     public BufferedImage decode(ByteSource byteSource) throws IOException,
@@ -21,41 +21,141 @@ import java.io.InputStream;
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.formats.jpeg.JpegConstants;
 
+/**
+ * Reads the entropy coded data of a scan. Bytes are read from the stream in
+ * blocks and shifted into a 64-bit buffer, most significant bit first, with
+ * the stuffed zero bytes removed. When the data ends, at a marker or at the
+ * end of the stream, the buffer is padded with zero bits so that lookahead
+ * can go past the end; only consuming the padding is an error.
+ * <p>
+ * The data can also be a range of an array, such as one restart interval,
+ * which is then read in place.
+ */
 public class JpegInputStream {
     // Figure F.18, F.2.2.5, page 111 of ITU-T T.81
+    private static final int END_OF_FILE = -1;
+
     private final InputStream is;
-    private int cnt = 0;
-    private int b;
+    private final byte buffer[];
+    private int position = 0;
+    private int limit = 0;
+    private long bits = 0;
+    private int bitCount = 0;
+    // zero bits at the end of the buffer that are not in the stream
+    private int padding = 0;
+    // the marker that ended the data, or END_OF_FILE
+    private int end = 0;
+    private boolean ended = false;
 
     public JpegInputStream(InputStream is) {
         this.is = is;
+        this.buffer = new byte[4096];
     }
 
-    public int nextBit() throws IOException, ImageReadException {
-        if (cnt == 0) {
-            b = is.read();
-            if (b < 0) {
-                throw new ImageReadException("Premature End of File");
-            }
-            cnt = 8;
-            if (b == 0xff) {
-                int b2 = is.read();
-                if (b2 < 0) {
-                    throw new ImageReadException("Premature End of File");
-                }
-                if (b2 != 0) {
-                    if (b2 == (0xff & JpegConstants.DNLMarker)) {
-                        throw new ImageReadException("DNL not yet supported");
+    public JpegInputStream(byte data[], int offset, int length) {
+        this.is = null;
+        this.buffer = data;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    private boolean refill() throws IOException {
+        if (is == null) {
+            return false;
+        }
+        limit = is.read(buffer, 0, buffer.length);
+        position = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        if (position >= limit && !refill()) {
+            return -1;
+        }
+        return 0xff & buffer[position++];
+    }
+
+    private int peekByte() throws IOException {
+        if (position >= limit && !refill()) {
+            return -1;
+        }
+        return 0xff & buffer[position];
+    }
+
+    private void fill() throws IOException {
+        while (bitCount <= 56) {
+            int b = 0;
+            if (ended) {
+                padding += 8;
+            } else {
+                b = readByte();
+                if (b < 0) {
+                    ended = true;
+                    end = END_OF_FILE;
+                    padding += 8;
+                    b = 0;
+                } else if (b == 0xff) {
+                    int b2 = peekByte();
+                    if (b2 == 0) {
+                        position++;
                     } else {
-                        throw new ImageReadException("Invalid marker found "
-                                + "in entropy data");
+                        // leave the marker in the stream
+                        ended = true;
+                        end = b2;
+                        padding += 8;
+                        b = 0;
                     }
                 }
             }
+            bits |= (long) b << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    private void endOfData() throws ImageReadException {
+        if (end == END_OF_FILE) {
+            throw new ImageReadException("Premature End of File");
+        } else if (end == (0xff & JpegConstants.DNLMarker)) {
+            throw new ImageReadException("DNL not yet supported");
+        }
+        throw new ImageReadException("Invalid marker found in entropy data");
+    }
+
+    /**
+     * Returns the next count bits, 0 < count <= 32, without consuming them.
+     */
+    public int peekBits(int count) throws IOException {
+        if (bitCount < count) {
+            fill();
+        }
+        return (int) (bits >>> (64 - count));
+    }
+
+    public void skipBits(int count) throws ImageReadException {
+        bits <<= count;
+        bitCount -= count;
+        if (bitCount < padding) {
+            endOfData();
+        }
+    }
+
+    /**
+     * Consumes and returns the next count bits, 0 <= count <= 32.
+     */
+    public int readBits(int count) throws IOException, ImageReadException {
+        if (count == 0) {
+            return 0;
         }
-        int bit = (b >> 7) & 0x1;
-        cnt--;
-        b <<= 1;
-        return bit;
+        int value = peekBits(count);
+        skipBits(count);
+        return value;
+    }
+
+    public int nextBit() throws IOException, ImageReadException {
+        return readBits(1);
     }
 }
@@ -133,6 +133,28 @@ public class ExifRewriter extends BinaryFileParser implements JpegConstants {
         }
     }
 
+    private static class JFIFPieceImageStream extends JFIFPiece {
+        public final byte markerBytes[];
+        public final InputStream imageData;
+
+        public JFIFPieceImageStream(final byte[] markerBytes,
+                final InputStream imageData) {
+            super();
+            this.markerBytes = markerBytes;
+            this.imageData = imageData;
+        }
+
+        @Override
+        protected void write(OutputStream os) throws IOException {
+            os.write(markerBytes);
+            byte buffer[] = new byte[8192];
+            int read;
+            while ((read = imageData.read(buffer)) > 0) {
+                os.write(buffer, 0, read);
+            }
+        }
+    }
+
     private JFIFPieces analyzeJFIF(ByteSource byteSource)
             throws ImageReadException, IOException
     // , ImageWriteException
@@ -157,23 +179,8 @@ public class ExifRewriter extends BinaryFileParser implements JpegConstants {
                     byte segmentData[]) throws
             // ImageWriteException,
                     ImageReadException, IOException {
-                if (marker != JPEG_APP1_Marker) {
-                    pieces.add(new JFIFPieceSegment(marker, markerBytes,
-                            markerLengthBytes, segmentData));
-                } else if (!byteArrayHasPrefix(segmentData,
-                        EXIF_IDENTIFIER_CODE)) {
-                    pieces.add(new JFIFPieceSegment(marker, markerBytes,
-                            markerLengthBytes, segmentData));
-                // } else if (exifSegmentArray[0] != null) {
-                // // TODO: add support for multiple segments
-                // throw new ImageReadException(
-                // "More than one APP1 EXIF segment.");
-                } else {
-                    JFIFPiece piece = new JFIFPieceSegmentExif(marker,
-                            markerBytes, markerLengthBytes, segmentData);
-                    pieces.add(piece);
-                    exifPieces.add(piece);
-                }
+                addSegmentPiece(pieces, exifPieces, marker, markerBytes,
+                        markerLengthBytes, segmentData);
                 return true;
             }
         };
@@ -190,6 +197,27 @@ public class ExifRewriter extends BinaryFileParser implements JpegConstants {
         return new JFIFPieces(pieces, exifPieces);
     }
 
+    private static void addSegmentPiece(List<JFIFPiece> pieces,
+            List<JFIFPiece> exifPieces, int marker, byte markerBytes[],
+            byte markerLengthBytes[], byte segmentData[]) {
+        if (marker != JPEG_APP1_Marker) {
+            pieces.add(new JFIFPieceSegment(marker, markerBytes,
+                    markerLengthBytes, segmentData));
+        } else if (!byteArrayHasPrefix(segmentData, EXIF_IDENTIFIER_CODE)) {
+            pieces.add(new JFIFPieceSegment(marker, markerBytes,
+                    markerLengthBytes, segmentData));
+        // } else if (exifSegmentArray[0] != null) {
+        // // TODO: add support for multiple segments
+        // throw new ImageReadException(
+        // "More than one APP1 EXIF segment.");
+        } else {
+            JFIFPiece piece = new JFIFPieceSegmentExif(marker, markerBytes,
+                    markerLengthBytes, segmentData);
+            pieces.add(piece);
+            exifPieces.add(piece);
+        }
+    }
+
     /**
      * Reads a Jpeg image, removes all EXIF metadata (by removing the APP1
      * segment), and writes the result to a stream.
@@ -371,12 +399,92 @@ public class ExifRewriter extends BinaryFileParser implements JpegConstants {
         JFIFPieces jfifPieces = analyzeJFIF(byteSource);
         List<JFIFPiece> pieces = jfifPieces.pieces;
 
+        byte newBytes[] = writeLosslessExifSegment(jfifPieces.exifPieces,
+                outputSet);
+
+        writeSegmentsReplacingExif(os, pieces, newBytes);
+    }
+
+    /**
+     * Reads a Jpeg image, replaces the EXIF metadata and writes the result to a
+     * stream, the same way as
+     * {@link #updateExifMetadataLossless(ByteSource, OutputStream, TiffOutputSet)}
+     * but without reading the image data into memory.
+     * <p>
+     * The segments preceding the image data are collected, the new EXIF
+     * segment is built from them, and the image data is then copied from the
+     * source to the output stream as it is read, so memory use is bounded by
+     * the size of the header.
+     * <p>
+     * 
+     * @param byteSource
+     *            ByteSource containing Jpeg image data.
+     * @param os
+     *            OutputStream to write the image to.
+     * @param outputSet
+     *            TiffOutputSet containing the EXIF data to write.
+     */
+    public void updateExifMetadataLosslessStreaming(ByteSource byteSource,
+            final OutputStream os, final TiffOutputSet outputSet)
+            throws ImageReadException, IOException, ImageWriteException {
+        final List<JFIFPiece> pieces = new ArrayList<JFIFPiece>();
+        final List<JFIFPiece> exifPieces = new ArrayList<JFIFPiece>();
+        final ImageWriteException writeException[] = new ImageWriteException[1];
+
+        JpegUtils.Visitor visitor = new JpegUtils.StreamingVisitor() {
+            // return false to exit before reading image data.
+            public boolean beginSOS() {
+                return true;
+            }
+
+            public void visitSOS(int marker, byte markerBytes[],
+                    byte imageData[]) {
+            }
+
+            public void visitSOS(int marker, byte markerBytes[],
+                    InputStream imageData) throws ImageReadException,
+                    IOException {
+                try {
+                    byte newBytes[] = writeLosslessExifSegment(exifPieces,
+                            outputSet);
+                    pieces.add(new JFIFPieceImageStream(markerBytes,
+                            imageData));
+                    writeSegmentsReplacingExif(os, pieces, newBytes);
+                } catch (ImageWriteException e) {
+                    writeException[0] = e;
+                }
+            }
+
+            public boolean readSegment(int marker) {
+                return true;
+            }
+
+            // return false to exit traversal.
+            public boolean visitSegment(int marker, byte markerBytes[],
+                    int markerLength, byte markerLengthBytes[],
+                    byte segmentData[]) {
+                addSegmentPiece(pieces, exifPieces, marker, markerBytes,
+                        markerLengthBytes, segmentData);
+                return true;
+            }
+        };
+
+        new JpegUtils().traverseJFIF(byteSource, visitor);
+
+        if (writeException[0] != null) {
+            throw writeException[0];
+        }
+    }
+
+    private byte[] writeLosslessExifSegment(List<JFIFPiece> exifPieces,
+            TiffOutputSet outputSet) throws ImageReadException, IOException,
+            ImageWriteException {
         TiffImageWriterBase writer;
         // Just use first APP1 segment for now.
         // Multiple APP1 segments are rare and poorly supported.
-        if (jfifPieces.exifPieces.size() > 0) {
+        if (exifPieces.size() > 0) {
             JFIFPieceSegment exifPiece = null;
-            exifPiece = (JFIFPieceSegment) jfifPieces.exifPieces.get(0);
+            exifPiece = (JFIFPieceSegment) exifPieces.get(0);
 
             byte exifBytes[] = exifPiece.segmentData;
             exifBytes = getByteArrayTail("trimmed exif bytes", exifBytes, 6);
@@ -388,9 +496,7 @@ public class ExifRewriter extends BinaryFileParser implements JpegConstants {
         }
 
         boolean includeEXIFPrefix = true;
-        byte newBytes[] = writeExifSegment(writer, outputSet, includeEXIFPrefix);
-
-        writeSegmentsReplacingExif(os, pieces, newBytes);
+        return writeExifSegment(writer, outputSet, includeEXIFPrefix);
     }
 
     /**
@@ -25,6 +25,8 @@ public class DhtSegment extends Segment {
     public final List<HuffmanTable> huffmanTables = new ArrayList<HuffmanTable>();
 
     public static class HuffmanTable {
+        public static final int LOOKAHEAD_BITS = 9;
+
         // some arrays are better off one-based
         // to avoid subtractions by one later when indexing them
         public final int tableClass;
@@ -38,6 +40,9 @@ public class DhtSegment extends Segment {
         public final int[] minCode = new int[1 + 16]; // 1-based
         public final int[] maxCode = new int[1 + 16]; // 1-based
         public final int[] valPtr = new int[1 + 16]; // 1-based
+        // indexed by the next LOOKAHEAD_BITS bits of the stream: the code
+        // length << 8 | the value, or 0 for longer codes
+        public final int[] lookahead = new int[1 << LOOKAHEAD_BITS];
 
         public HuffmanTable(int tableClass, int destinationIdentifier,
                 int[] bits, int[] huffVal) {
@@ -110,6 +115,15 @@ public class DhtSegment extends Segment {
                 }
             }
 
+            for (k = 0; k < lastK && huffSize[k] <= LOOKAHEAD_BITS; k++) {
+                int shift = LOOKAHEAD_BITS - huffSize[k];
+                int first = huffCode[k] << shift;
+                int last = Math.min(lookahead.length, first + (1 << shift));
+                for (int index = first; index < last; index++) {
+                    lookahead[index] = (huffSize[k] << 8) | huffVal[k];
+                }
+            }
+
         }
     }
 
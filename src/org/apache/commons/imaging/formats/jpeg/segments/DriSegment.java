@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.commons.imaging.formats.jpeg.segments;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.imaging.ImageReadException;
+
+public class DriSegment extends Segment {
+    // MCUs between restart markers, 0 when there are none
+    public final int restartInterval;
+
+    public DriSegment(int marker, byte segmentData[])
+            throws ImageReadException, IOException {
+        this(marker, segmentData.length, new ByteArrayInputStream(segmentData));
+    }
+
+    public DriSegment(int marker, int marker_length, InputStream is)
+            throws ImageReadException, IOException {
+        super(marker, marker_length);
+
+        restartInterval = read2Bytes("Restart_interval", is,
+                "Not a Valid JPEG File");
+    }
+
+    @Override
+    public String getDescription() {
+        return "DRI (" + restartInterval + ")";
+    }
+
+}
@@ -21,7 +21,7 @@ import java.io.IOException;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.common.ByteOrder;
-import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.common.bytesource.ByteSource;
 import org.apache.commons.imaging.formats.tiff.datareaders.DataReader;
 import org.apache.commons.imaging.formats.tiff.datareaders.DataReaderStrips;
 import org.apache.commons.imaging.formats.tiff.datareaders.DataReaderTiled;
@@ -132,10 +132,13 @@ public abstract class TiffImageData {
 
     }
 
+    /**
+     * Image data that stays in the byte source until a reader asks for it.
+     */
     public static class ByteSourceData extends Data {
-        ByteSourceFile byteSourceFile;
+        ByteSource byteSourceFile;
 
-        public ByteSourceData(int offset, int length, ByteSourceFile byteSource) {
+        public ByteSourceData(int offset, int length, ByteSource byteSource) {
             super(offset, length, new byte[0]);
             byteSourceFile = byteSource;
         }
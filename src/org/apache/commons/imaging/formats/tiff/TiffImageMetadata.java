@@ -486,6 +486,17 @@ public class TiffImageMetadata extends ImageMetadata implements
         TiffField longitudeField = gpsDirectory
                 .findField(GpsTagConstants.GPS_TAG_GPS_LONGITUDE);
 
+        return getGPS(latitudeRefField, latitudeField, longitudeRefField,
+                longitudeField);
+    }
+
+    /**
+     * Builds the GPS position from its four fields, as read by getGPS() or by
+     * TiffReader.readTags(). Returns null when one of them is missing.
+     */
+    public static GPSInfo getGPS(TiffField latitudeRefField,
+            TiffField latitudeField, TiffField longitudeRefField,
+            TiffField longitudeField) throws ImageReadException {
         if (latitudeRefField == null || latitudeField == null
                 || longitudeRefField == null || longitudeField == null) {
             return null;
@@ -28,10 +28,12 @@ import org.apache.commons.imaging.common.BinaryFileParser;
 import org.apache.commons.imaging.common.ByteOrder;
 import org.apache.commons.imaging.common.bytesource.ByteSource;
 import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.common.bytesource.ByteSourceMapped;
 import org.apache.commons.imaging.formats.tiff.TiffDirectory.ImageDataElement;
 import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
 import org.apache.commons.imaging.formats.tiff.constants.TiffConstants;
 import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
+import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
 import org.apache.commons.imaging.util.Debug;
 
 public class TiffReader extends BinaryFileParser implements TiffConstants {
@@ -447,6 +449,179 @@ public class TiffReader extends BinaryFileParser implements TiffConstants {
         readDirectories(byteSource, formatCompliance, listener);
     }
 
+    /**
+     * Reads only the given tags from TIFF data held in memory, without
+     * building the directories. IFD0 and the following IFDs are walked in the
+     * same order as by readContents, together with the EXIF, GPS and
+     * interoperability directories they point to, and only the entries
+     * matching one of the tags are turned into fields, their values taken
+     * straight from the entry bytes.
+     * <p>
+     * Each tag is looked up in the directories of its own directory type,
+     * like TiffImageMetadata.findField(tagInfo, true). The walk stops as soon
+     * as all the tags are found.
+     *
+     * @param bytes
+     *            the bytes holding the TIFF data.
+     * @param start
+     *            the offset of the TIFF header in bytes; the offsets in the
+     *            directories are relative to it.
+     * @param tags
+     *            the tags to read.
+     * @return the field of each tag, at the same index, or null when the tag
+     *         is missing.
+     */
+    public TiffField[] readTags(byte bytes[], int start, TagInfo tags[])
+            throws ImageReadException {
+        if (bytes.length - start < 8) {
+            throw new ImageReadException("Not a Valid TIFF File");
+        }
+        int byteOrder1 = bytes[start];
+        int byteOrder2 = bytes[start + 1];
+        if (byteOrder1 != byteOrder2) {
+            throw new ImageReadException("Byte Order bytes don't match ("
+                    + byteOrder1 + ", " + byteOrder2 + ").");
+        }
+        setByteOrder(getTiffByteOrder(byteOrder1));
+        int tiffVersion = convertByteArrayToShort("tiffVersion", start + 2,
+                bytes);
+        if (tiffVersion != 42) {
+            throw new ImageReadException("Unknown Tiff Version: "
+                    + tiffVersion);
+        }
+        int offsetToFirstIFD = convertByteArrayToInt("offsetToFirstIFD",
+                start + 4, bytes);
+
+        TiffField fields[] = new TiffField[tags.length];
+        List<Number> visited = new ArrayList<Number>();
+        readTags(bytes, start, offsetToFirstIFD,
+                TiffDirectory.DIRECTORY_TYPE_ROOT, false, tags, fields,
+                visited);
+        return fields;
+    }
+
+    // returns false when all the tags are found
+    private boolean readTags(byte bytes[], int start, int offset,
+            int dirType, boolean ignoreNextDirectory, TagInfo tags[],
+            TiffField fields[], List<Number> visited)
+            throws ImageReadException {
+        if (visited.contains(offset)) {
+            return true;
+        }
+        visited.add(offset);
+
+        int position = start + offset;
+        if (offset < 0 || position + 2 > bytes.length) {
+            return true;
+        }
+        int entryCount = convertByteArrayToShort("DirectoryEntryCount",
+                position, bytes);
+        position += 2;
+        if (position + entryCount * 12 + 4 > bytes.length) {
+            throw new ImageReadException("Not a Valid TIFF File");
+        }
+
+        boolean wanted = false;
+        for (int k = 0; k < tags.length; k++) {
+            if (fields[k] == null
+                    && tags[k].directoryType.directoryType == dirType) {
+                wanted = true;
+            }
+        }
+
+        int subDirectories = 0;
+        for (int i = 0; i < entryCount; i++, position += 12) {
+            int tag = convertByteArrayToShort("Tag", position, bytes);
+            if (tag == ExifTagConstants.EXIF_TAG_EXIF_OFFSET.tag
+                    || tag == ExifTagConstants.EXIF_TAG_GPSINFO.tag
+                    || tag == ExifTagConstants.EXIF_TAG_INTEROP_OFFSET.tag) {
+                subDirectories++;
+            }
+            if (!wanted || tag == 0) {
+                continue;
+            }
+            for (int k = 0; k < tags.length; k++) {
+                if (fields[k] == null && tags[k].tag == tag
+                        && tags[k].directoryType.directoryType == dirType) {
+                    fields[k] = readField(bytes, start, position, dirType);
+                    if (fields[k] != null) {
+                        fields[k].setSortHint(i);
+                    }
+                }
+            }
+        }
+        int nextDirectoryOffset = convertByteArrayToInt("nextDirectoryOffset",
+                position, bytes);
+
+        boolean incomplete = false;
+        for (int k = 0; k < tags.length; k++) {
+            if (fields[k] == null) {
+                incomplete = true;
+            }
+        }
+        if (!incomplete) {
+            return false;
+        }
+
+        position = start + offset + 2;
+        for (int i = 0; i < entryCount && subDirectories > 0; i++, position += 12) {
+            int tag = convertByteArrayToShort("Tag", position, bytes);
+            int subDirectoryType;
+            if (tag == ExifTagConstants.EXIF_TAG_EXIF_OFFSET.tag) {
+                subDirectoryType = TiffDirectory.DIRECTORY_TYPE_EXIF;
+            } else if (tag == ExifTagConstants.EXIF_TAG_GPSINFO.tag) {
+                subDirectoryType = TiffDirectory.DIRECTORY_TYPE_GPS;
+            } else if (tag == ExifTagConstants.EXIF_TAG_INTEROP_OFFSET.tag) {
+                subDirectoryType = TiffDirectory.DIRECTORY_TYPE_INTEROPERABILITY;
+            } else {
+                continue;
+            }
+            subDirectories--;
+            TiffField entry = readField(bytes, start, position, dirType);
+            if (entry == null) {
+                continue;
+            }
+            int subDirectoryOffset = ((Number) entry.getValue()).intValue();
+            if (!readTags(bytes, start, subDirectoryOffset, subDirectoryType,
+                    true, tags, fields, visited)) {
+                return false;
+            }
+        }
+
+        if (!ignoreNextDirectory && nextDirectoryOffset > 0) {
+            return readTags(bytes, start, nextDirectoryOffset, dirType + 1,
+                    false, tags, fields, visited);
+        }
+        return true;
+    }
+
+    // null when the value lies outside of the data, like a corrupt field
+    // skipped by readDirectory
+    private TiffField readField(byte bytes[], int start, int position,
+            int dirType) throws ImageReadException {
+        int tag = convertByteArrayToShort("Tag", position, bytes);
+        int type = convertByteArrayToShort("Type", position + 2, bytes);
+        int length = convertByteArrayToInt("Length", position + 4, bytes);
+        byte valueOffsetBytes[] = new byte[4];
+        System.arraycopy(bytes, position + 8, valueOffsetBytes, 0, 4);
+        int valueOffset = convertByteArrayToInt("ValueOffset",
+                valueOffsetBytes);
+
+        TiffField field = new TiffField(tag, dirType, type, length,
+                valueOffset, valueOffsetBytes, getByteOrder());
+        if (!field.isLocalValue()) {
+            long valueLength = (0xffffffffL & length) * field.fieldType.length;
+            if (valueOffset < 0
+                    || start + valueOffset + valueLength > bytes.length) {
+                return null;
+            }
+            byte value[] = new byte[(int) valueLength];
+            System.arraycopy(bytes, start + valueOffset, value, 0, value.length);
+            field.setOversizeValue(value);
+        }
+        return field;
+    }
+
     private TiffImageData getTiffRawImageData(ByteSource byteSource,
             TiffDirectory directory) throws ImageReadException, IOException {
 
@@ -454,12 +629,13 @@ public class TiffReader extends BinaryFileParser implements TiffConstants {
                 .getTiffRawImageDataElements();
         TiffImageData.Data data[] = new TiffImageData.Data[elements.size()];
 
-        if (byteSource instanceof ByteSourceFile) {
-            ByteSourceFile bsf = (ByteSourceFile) byteSource;
+        if (byteSource instanceof ByteSourceFile
+                || byteSource instanceof ByteSourceMapped) {
+            // strips and tiles are only read when the image is decoded.
             for (int i = 0; i < elements.size(); i++) {
                 TiffDirectory.ImageDataElement element = elements.get(i);
                 data[i] = new TiffImageData.ByteSourceData(element.offset,
-                        element.length, bsf);
+                        element.length, byteSource);
             }
         } else {
             for (int i = 0; i < elements.size(); i++) {
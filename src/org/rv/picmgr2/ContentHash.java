@@ -0,0 +1,158 @@
+package org.rv.picmgr2;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+
+/**
+ * Content hashes used to recognize a file already imported under another
+ * name. The fingerprint only reads the first and last blocks and mixes in
+ * the size; files with equal fingerprints are confirmed with the hash of
+ * their whole content. 0 is never returned, it stands for "not computed".
+ */
+public class ContentHash {
+
+  static final int BLOCK_SIZE = 64 * 1024;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  public static long fingerprint(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      XxHash64 hash = new XxHash64(size);
+      ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+      update(hash, channel, buffer, 0, Math.min(size, BLOCK_SIZE));
+      if (size > BLOCK_SIZE) {
+        long tail = Math.max(BLOCK_SIZE, size - BLOCK_SIZE);
+        update(hash, channel, buffer, tail, size - tail);
+      }
+      return nonZero(hash.digest());
+    }
+  }
+
+  public static long fullHash(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      XxHash64 hash = new XxHash64(0);
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      update(hash, channel, buffer, 0, channel.size());
+      return nonZero(hash.digest());
+    }
+  }
+
+  private static void update(XxHash64 hash, FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+    long end = position + length;
+    while (position < end) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("File shrank while hashing");
+      }
+      hash.update(buffer.array(), 0, read);
+      position += read;
+    }
+  }
+
+  private static long nonZero(long hash) {
+    return hash == 0 ? 1 : hash;
+  }
+
+  /**
+   * A file byte source that computes the fingerprint and full hash of the
+   * file from the bytes read through its input stream. A file read once from
+   * start to end, like the source of an EXIF rewrite, then needn't be read
+   * again to be hashed.
+   */
+  public static final class HashingByteSource extends ByteSourceFile {
+    private final long size;
+    private XxHash64 fingerprint;
+    private XxHash64 fullHash;
+    private long position;
+
+    public HashingByteSource(File file) {
+      super(file);
+      this.size = file.length();
+    }
+
+    // each new stream starts the hashes over
+    @Override
+    public InputStream getInputStream() throws IOException {
+      fingerprint = new XxHash64(size);
+      fullHash = new XxHash64(0);
+      position = 0;
+      return new FilterInputStream(super.getInputStream()) {
+        @Override
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int read = super.read(b, off, len);
+          if (read > 0) {
+            update(b, off, read);
+          }
+          return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          byte[] buffer = new byte[(int) Math.min(n, 8192)];
+          long skipped = 0;
+          while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+              break;
+            }
+            skipped += read;
+          }
+          return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+          return false;
+        }
+      };
+    }
+
+    private void update(byte[] b, int off, int len) {
+      updateFingerprint(b, off, len, 0, Math.min(size, BLOCK_SIZE));
+      if (size > BLOCK_SIZE) {
+        updateFingerprint(b, off, len, Math.max(BLOCK_SIZE, size - BLOCK_SIZE), size);
+      }
+      fullHash.update(b, off, len);
+      position += len;
+    }
+
+    // the part of the bytes at position that falls in [start, end)
+    private void updateFingerprint(byte[] b, int off, int len, long start, long end) {
+      long from = Math.max(position, start);
+      long to = Math.min(position + len, end);
+      if (from < to) {
+        fingerprint.update(b, off + (int) (from - position), (int) (to - from));
+      }
+    }
+
+    /** Same as ContentHash.fingerprint, 0 unless the whole file was read. */
+    public long fingerprint() {
+      return isComplete() ? nonZero(fingerprint.digest()) : 0;
+    }
+
+    /** Same as ContentHash.fullHash, 0 unless the whole file was read. */
+    public long fullHash() {
+      return isComplete() ? nonZero(fullHash.digest()) : 0;
+    }
+
+    private boolean isComplete() {
+      return fullHash != null && position == size;
+    }
+  }
+}
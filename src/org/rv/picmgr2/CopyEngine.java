@@ -0,0 +1,247 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.json.JSONException;
+
+/**
+ * Copies the new photos into the destination tree on a pool of worker
+ * threads. The photos of one destination folder are copied by a single task
+ * in list order, so the "__N" names given on collisions are the same as with
+ * a sequential copy; different folders are copied in parallel. Plain copies
+ * go through FileChannel.transferTo, and location links are created once all
+ * files are copied, in list order.
+ */
+public class CopyEngine {
+
+  public static final int DEFAULT_THREADS = 4;
+
+  private static final int PROGRESS_STEP = 100;
+
+  /**
+   * One file to copy: the source, its destination folder and name before
+   * collision renaming, the location to write into its EXIF when it comes
+   * from a master, and the location used for its link.
+   */
+  public static final class Job {
+    final Path source;
+    final String folderDest;
+    final String newFileName;
+    final boolean rewrite;
+    final double latitude;
+    final double longitude;
+    final JsonInfo location;
+    Path dstFile;
+
+    public Job(Path source, String folderDest, String newFileName, boolean rewrite, double latitude, double longitude, JsonInfo location) {
+      this.source = source;
+      this.folderDest = folderDest;
+      this.newFileName = newFileName;
+      this.rewrite = rewrite;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.location = location;
+    }
+
+    public Path getDstFile() {
+      return dstFile;
+    }
+  }
+
+  private final int threads;
+  private final String baseDst;
+  private final boolean processLink;
+  private final DestinationIndex index;
+  private final AtomicInteger filesCopied = new AtomicInteger(0);
+  private final AtomicLong bytesCopied = new AtomicLong(0);
+  private int filesTotal = 0;
+
+  public CopyEngine(int threads, String baseDst, boolean processLink, DestinationIndex index) {
+    this.threads = threads;
+    this.baseDst = baseDst;
+    this.processLink = processLink;
+    this.index = index;
+  }
+
+  public int getFilesCopied() {
+    return filesCopied.get();
+  }
+
+  public int getFilesTotal() {
+    return filesTotal;
+  }
+
+  public long getBytesCopied() {
+    return bytesCopied.get();
+  }
+
+  /**
+   * Builds the copy jobs of the photos not yet in the destination. Names are
+   * computed here, on the calling thread, as they may need a geocode lookup.
+   */
+  public static List<Job> jobs(Collection<PhotoInfo> photos) throws ImageReadException, JSONException {
+    List<Job> jobs = new ArrayList<>();
+    for (PhotoInfo photo : photos) {
+      if (photo.isExistInDst()) {
+        continue;
+      }
+      String newFileName = photo.hasGpsInfo() ? photo.buildNewNameWithGps() : photo.getSourcePath().getFileName().toString();
+      String folderDest = FileUtil.buildDestFolder(photo.retrieveTakenOn());
+      boolean rewrite = photo.hasMaster();
+      double latitude = rewrite ? photo.getGpsInfo().getLatitudeAsDegreesNorth() : 0;
+      double longitude = rewrite ? photo.getGpsInfo().getLongitudeAsDegreesEast() : 0;
+      jobs.add(new Job(photo.getSourcePath(), folderDest, newFileName, rewrite, latitude, longitude, photo.getJsonInfo()));
+    }
+    return jobs;
+  }
+
+  /**
+   * The files written by the jobs that ran.
+   */
+  public static List<Path> dstFiles(List<Job> jobs) {
+    List<Path> files = new ArrayList<>();
+    for (Job job : jobs) {
+      if (job.dstFile != null) {
+        files.add(job.dstFile);
+      }
+    }
+    return files;
+  }
+
+  public void run(List<Job> jobs) throws IOException, ImageReadException, ImageWriteException {
+    long start = System.nanoTime();
+
+    Map<String, List<Job>> byFolder = new LinkedHashMap<>();
+    for (Job job : jobs) {
+      List<Job> folder = byFolder.get(job.folderDest);
+      if (folder == null) {
+        folder = new ArrayList<>();
+        byFolder.put(job.folderDest, folder);
+      }
+      folder.add(job);
+    }
+    filesTotal = jobs.size();
+    if (jobs.isEmpty()) {
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, byFolder.size())));
+    List<Future<Void>> pending = new ArrayList<>();
+    for (final List<Job> folder : byFolder.values()) {
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException, ImageReadException, ImageWriteException {
+          for (Job job : folder) {
+            copy(job);
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    try {
+      for (Future<Void> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IOException("Copy interrupted", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof ImageReadException) {
+        throw (ImageReadException) cause;
+      } else if (cause instanceof ImageWriteException) {
+        throw (ImageWriteException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+
+    if (processLink) {
+      for (Job job : jobs) {
+        if (job.location != null) {
+          FileUtil.createSymLink(job.location, job.dstFile, baseDst);
+        }
+      }
+    }
+
+    RvLogger.throughput("copy", filesCopied.get(), start);
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+    RvLogger.info("[stage:copy] " + (bytesCopied.get() >> 20) + " MB written (" + (bytesCopied.get() * 1000 / elapsedMs >> 20) + " MB/s)");
+  }
+
+  private void copy(Job job) throws IOException, ImageReadException, ImageWriteException {
+    long start = Metrics.start();
+    Path dstFile = Paths.get(baseDst, job.folderDest, job.newFileName);
+    FileUtil.ensureFolderExist(dstFile.getParent().toFile());
+
+    int i = 1;
+    while  (Files.exists(dstFile)) {
+      dstFile = Paths.get(baseDst, job.folderDest, job.newFileName+"__"+i);
+      RvLogger.info("File already imported, set new name " + dstFile);
+      i++;
+    }
+
+    DestinationIndex.Entry entry;
+    if (job.rewrite) {
+      // the source's hashes are taken from the bytes the rewrite reads anyway
+      ContentHash.HashingByteSource source = new ContentHash.HashingByteSource(job.source.toFile());
+      MetaTagUtil.copyAndSetExifTag(job.source, source, job.latitude, job.longitude, dstFile.toFile());
+      job.dstFile = dstFile;
+      entry = source.fullHash() != 0 ? index.addRewritten(dstFile, source.getLength(), source.fingerprint(), source.fullHash())
+          : index.add(dstFile);
+    } else {
+      transfer(job.source, dstFile);
+      job.dstFile = dstFile;
+      entry = index.add(dstFile);
+    }
+    bytesCopied.addAndGet(entry.getSize());
+    Metrics.record(Metrics.Stage.COPY, start, entry.getSize());
+    if (job.rewrite) {
+      Metrics.increment("copy.rewrites");
+    }
+    int done = filesCopied.incrementAndGet();
+    if (done % PROGRESS_STEP == 0) {
+      RvLogger.info("Copied " + done + "/" + filesTotal + " files, " + (bytesCopied.get() >> 20) + " MB");
+    }
+  }
+
+  private static void transfer(Path src, Path dst) throws IOException {
+    try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        long transferred = in.transferTo(position, size - position, out);
+        if (transferred <= 0) {
+          throw new IOException("Source file shrank while copying " + src);
+        }
+        position += transferred;
+      }
+    }
+  }
+}
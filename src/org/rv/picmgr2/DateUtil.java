@@ -1,17 +1,140 @@
 package org.rv.picmgr2;
 
+import java.io.File;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * EXIF dates ("yyyy:MM:dd HH:mm:ss", local time of the camera) as epoch
+ * milliseconds in the default time zone, the same instants SimpleDateFormat
+ * gave. The fields are read straight from the ASCII bytes and the calendar
+ * arithmetic is done on longs, so nothing is allocated and nothing is shared
+ * between the extraction workers but the immutable time zone.
+ */
 public class DateUtil {
 
-  private static String DATE_FORMAT = "yyyy:MM:dd HH:mm:ss";
+  public static final long NO_DATE = Long.MIN_VALUE;
 
-  private static SimpleDateFormat dateFormater = new SimpleDateFormat(DATE_FORMAT);
- 
+  private static final int DATE_LENGTH = 19;
+  private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
 
-  public static Date toDate(String stringDate) throws ParseException {
-    return dateFormater.parse(stringDate);
+  private static final int FIRST_CACHED_YEAR = 1900;
+  private static final int CACHED_YEARS = 256;
+  private static final AtomicReferenceArray<String> folders = new AtomicReferenceArray<>(CACHED_YEARS * 12);
+
+  private static final TimeZone timeZone = TimeZone.getDefault();
+
+  /**
+   * Returns NO_DATE for "0000:00:00 ...", which cameras write when their
+   * clock was never set.
+   */
+  public static long toEpoch(byte[] bytes, int offset, int length) throws ParseException {
+    if (length < DATE_LENGTH || bytes[offset + 4] != ':' || bytes[offset + 7] != ':' || bytes[offset + 10] != ' '
+        || bytes[offset + 13] != ':' || bytes[offset + 16] != ':') {
+      throw new ParseException("Unparseable date: \"" + ascii(bytes, offset, length) + "\"", 0);
+    }
+    int year = digits(bytes, offset, 4);
+    int month = digits(bytes, offset + 5, 2);
+    int day = digits(bytes, offset + 8, 2);
+    int hour = digits(bytes, offset + 11, 2);
+    int minute = digits(bytes, offset + 14, 2);
+    int second = digits(bytes, offset + 17, 2);
+    if ((year | month | day | hour | minute | second) < 0) {
+      throw new ParseException("Unparseable date: \"" + ascii(bytes, offset, length) + "\"", 0);
+    }
+    if ((year | month | day) == 0) {
+      return NO_DATE;
+    }
+
+    // lenient like SimpleDateFormat: month 13 is January of the next year, day 0 the last day of the previous month
+    year += Math.floorDiv(month - 1, 12);
+    month = Math.floorMod(month - 1, 12) + 1;
+    long local = (daysFromCivil(year, month, 1) + day - 1) * MS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000;
+
+    // offsets on both sides of a DST or zone change near that local time: in
+    // an overlap the later instant is taken, in a gap the offset before the
+    // change, as GregorianCalendar does
+    int before = timeZone.getOffset(local - MS_PER_DAY);
+    int after = timeZone.getOffset(local + MS_PER_DAY);
+    int zoneOffset;
+    if (before == after) {
+      zoneOffset = timeZone.getOffset(local - before);
+    } else {
+      boolean beforeValid = timeZone.getOffset(local - before) == before;
+      boolean afterValid = timeZone.getOffset(local - after) == after;
+      if (beforeValid && afterValid) {
+        zoneOffset = Math.min(before, after);
+      } else if (afterValid) {
+        zoneOffset = after;
+      } else {
+        zoneOffset = before;
+      }
+    }
+    return local - zoneOffset;
+  }
+
+  /**
+   * The destination folder of a date, "yyyy/yyyy-MM" in the default time
+   * zone. Folder names are cached per month.
+   */
+  public static String toFolder(long epoch) {
+    long days = Math.floorDiv(epoch + timeZone.getOffset(epoch), MS_PER_DAY);
+    // civil from days, H. Hinnant's algorithm
+    long z = days + 719468;
+    long era = Math.floorDiv(z, 146097);
+    long doe = z - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+    int index = (year - FIRST_CACHED_YEAR) * 12 + month - 1;
+    if (index < 0 || index >= folders.length()) {
+      return folder(year, month);
+    }
+    String folder = folders.get(index);
+    if (folder == null) {
+      folder = folder(year, month);
+      folders.set(index, folder);
+    }
+    return folder;
+  }
+
+  private static String folder(int year, int month) {
+    String stringMonth = month > 9 ? "" + month : "0" + month;
+    String stringYear = year + "";
+    return stringYear + File.separator + stringYear + "-" + stringMonth;
+  }
+
+  private static long daysFromCivil(long year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    long era = Math.floorDiv(year, 400);
+    long yoe = year - era * 400;
+    long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+
+  // -1 when one of the bytes is not a digit
+  private static int digits(byte[] bytes, int offset, int count) {
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private static String ascii(byte[] bytes, int offset, int length) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = offset; i < offset + length && bytes[i] != 0; i++) {
+      sb.append((char) bytes[i]);
+    }
+    return sb.toString();
   }
 }
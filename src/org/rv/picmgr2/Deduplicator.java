@@ -0,0 +1,129 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides from the content, rather than the file name, which source photos
+ * are already in the destination. A photo is a duplicate when a destination
+ * file, or a photo earlier in the batch, has the same size, fingerprint and
+ * full hash. A photo whose name is taken by a different file is imported
+ * (it gets a "__N" name), and a renamed copy of an imported file is skipped.
+ * A photo imported with a location written into its EXIF is matched against
+ * the content it had before the rewrite, which the index keeps for the copy.
+ * <p>
+ * Only files of equal size are ever hashed, and destination hashes are kept
+ * in the DestinationIndex catalog so they are read once.
+ */
+public class Deduplicator {
+
+  private static final class Source {
+    final Path path;
+    final long size;
+    long hash = 0;
+    long fullHash = 0;
+
+    Source(Path path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+
+    long hash() throws IOException {
+      if (hash == 0) {
+        hash = ContentHash.fingerprint(path);
+      }
+      return hash;
+    }
+
+    long fullHash() throws IOException {
+      if (fullHash == 0) {
+        fullHash = ContentHash.fullHash(path);
+      }
+      return fullHash;
+    }
+  }
+
+  private final DestinationIndex index;
+  private final Map<Long, List<Source>> batch = new HashMap<>();
+  private int hashed = 0;
+
+  public Deduplicator(DestinationIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Updates PhotoInfo.existInDst for every photo and returns the number of
+   * photos to import.
+   */
+  public int run(List<PhotoInfo> photos) throws IOException {
+    long start = System.nanoTime();
+    int toImport = 0;
+    int nameClashes = 0;
+    int renamedCopies = 0;
+    for (PhotoInfo photo : photos) {
+      Source source = new Source(photo.getSourcePath(), Files.size(photo.getSourcePath()));
+      boolean duplicate = isInDestination(source) || isInBatch(source);
+      if (photo.isExistInDst() && !duplicate) {
+        nameClashes++;
+      } else if (!photo.isExistInDst() && duplicate) {
+        renamedCopies++;
+      }
+      photo.setExistInDst(duplicate);
+      if (!duplicate) {
+        toImport++;
+        List<Source> sameSize = batch.get(source.size);
+        if (sameSize == null) {
+          sameSize = new ArrayList<>(1);
+          batch.put(source.size, sameSize);
+        }
+        sameSize.add(source);
+      }
+    }
+    RvLogger.throughput("dedup", photos.size(), start);
+    RvLogger.info(hashed + " destination files hashed, " + nameClashes + " name clashes imported, " + renamedCopies + " copies skipped");
+    return toImport;
+  }
+
+  private boolean isInDestination(Source source) throws IOException {
+    for (DestinationIndex.Entry entry : index.findBySize(source.size)) {
+      Path file = index.resolve(entry);
+      try {
+        if (entry.getHash() == 0) {
+          entry.setHash(ContentHash.fingerprint(file));
+          hashed++;
+        }
+        if (entry.getHash() != source.hash()) {
+          continue;
+        }
+        if (entry.getFullHash() == 0) {
+          entry.setFullHash(ContentHash.fullHash(file));
+        }
+      } catch (IOException e) {
+        RvLogger.warn("Can't hash " + file, e);
+        continue;
+      }
+      if (entry.getFullHash() == source.fullHash()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isInBatch(Source source) throws IOException {
+    List<Source> sameSize = batch.get(source.size);
+    if (sameSize == null) {
+      return false;
+    }
+    for (Source other : sameSize) {
+      if (other.hash() == source.hash() && other.fullHash() == source.fullHash()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
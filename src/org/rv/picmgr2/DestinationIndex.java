@@ -0,0 +1,436 @@
+package org.rv.picmgr2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the files already present in the destination tree, keyed by
+ * lowercased file name and by size. The index is persisted in the
+ * destination root and only the directories whose mtime changed since the
+ * last run are listed again; unchanged directories are trusted together with
+ * their files. It also serves as the hash catalog of the destination: content
+ * hashes computed for a file are kept as long as its size and mtime don't
+ * change. A copy whose EXIF was rewritten is cataloged with the size and
+ * hashes of its source, so that the source is still recognized.
+ */
+public class DestinationIndex {
+
+  public static final String INDEX_FILE = ".rvpicmgr.idx";
+
+  // index, scan journal, preview cache and their temporary files live in
+  // the destination root
+  private static final String PRIVATE_PREFIX = ".rvpicmgr.";
+
+  private static final int MAGIC = 0x52564958; // "RVIX"
+  private static final int VERSION = 3;
+
+  // a directory modified this recently may still change within the same
+  // mtime tick (2s on FAT), so its listing is not trusted on the next run
+  private static final long RACY_MTIME_MS = 2000;
+
+  public static final class Entry {
+    final String name;
+    final String path;
+    final long size;
+    final long mtime;
+    final long sourceSize;
+    long hash;
+    long fullHash;
+
+    Entry(String name, String path, long size, long mtime, long sourceSize, long hash, long fullHash) {
+      this.name = name;
+      this.path = path;
+      this.size = size;
+      this.mtime = mtime;
+      this.sourceSize = sourceSize;
+      this.hash = hash;
+      this.fullHash = fullHash;
+    }
+
+    /** Path relative to the destination root, '/' separated. */
+    public String getPath() {
+      return path;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getMtime() {
+      return mtime;
+    }
+
+    /** Size the hashes are for: the source's one for a rewritten copy. */
+    public long getContentSize() {
+      return sourceSize != 0 ? sourceSize : size;
+    }
+
+    /** Fingerprint of the first and last blocks, 0 when not computed yet. */
+    public long getHash() {
+      return hash;
+    }
+
+    public void setHash(long hash) {
+      this.hash = hash;
+    }
+
+    /** Hash of the whole content, 0 when not computed yet. */
+    public long getFullHash() {
+      return fullHash;
+    }
+
+    public void setFullHash(long fullHash) {
+      this.fullHash = fullHash;
+    }
+  }
+
+  private static final class Dir {
+    long mtime;
+    final List<String> subdirs = new ArrayList<>();
+    final List<Entry> files = new ArrayList<>();
+
+    Dir(long mtime) {
+      this.mtime = mtime;
+    }
+  }
+
+  private final Path root;
+  private final Map<String, Dir> dirs = new HashMap<>();
+  private final Map<String, List<Entry>> byName = new HashMap<>();
+  private final Map<Long, List<Entry>> bySize = new HashMap<>();
+  private int rescanned = 0;
+
+  private DestinationIndex(Path root) {
+    this.root = root;
+  }
+
+  public static DestinationIndex open(Path root) throws IOException {
+    DestinationIndex index = new DestinationIndex(root);
+    if (Files.notExists(root)) {
+      return index;
+    }
+    Path file = root.resolve(INDEX_FILE);
+    if (Files.exists(file)) {
+      try {
+        index.load(file);
+      } catch (IOException | RuntimeException e) {
+        RvLogger.warn("Destination index unreadable, rebuilding " + file, e);
+        index.dirs.clear();
+        index.byName.clear();
+        index.bySize.clear();
+      }
+    }
+    index.refresh(root, "");
+    RvLogger.info(index.size() + " existing files indexed, " + index.rescanned + " folders rescanned");
+    return index;
+  }
+
+  public synchronized boolean contains(String fileName) {
+    return byName.containsKey(fileName.toLowerCase());
+  }
+
+  public synchronized List<Entry> find(String fileName) {
+    List<Entry> entries = byName.get(fileName.toLowerCase());
+    return entries == null ? new ArrayList<Entry>() : new ArrayList<>(entries);
+  }
+
+  /** The entries whose content size is the given one. */
+  public synchronized List<Entry> findBySize(long size) {
+    List<Entry> entries = bySize.get(size);
+    return entries == null ? new ArrayList<Entry>() : new ArrayList<>(entries);
+  }
+
+  public Path resolve(Entry entry) {
+    return root.resolve(entry.path);
+  }
+
+  public synchronized int size() {
+    int count = 0;
+    for (List<Entry> entries : byName.values()) {
+      count += entries.size();
+    }
+    return count;
+  }
+
+  /**
+   * Records a file just written into the destination, so the next lookup and
+   * the next run see it without listing its folder again.
+   */
+  public Entry add(Path file) throws IOException {
+    return add(file, 0, 0, 0);
+  }
+
+  /**
+   * Records a copy whose content was changed on the way, under the size,
+   * fingerprint and full hash of its source.
+   */
+  public Entry addRewritten(Path file, long sourceSize, long hash, long fullHash) throws IOException {
+    return add(file, sourceSize, hash, fullHash);
+  }
+
+  private synchronized Entry add(Path file, long sourceSize, long hash, long fullHash) throws IOException {
+    Path parent = file.getParent();
+    String rel = relative(parent);
+    ensureDir(parent, rel);
+
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    String name = file.getFileName().toString();
+    Entry entry = new Entry(name.toLowerCase(), child(rel, name), attrs.size(), attrs.lastModifiedTime().toMillis(), sourceSize, hash,
+        fullHash);
+
+    Dir dir = dirs.get(rel);
+    dir.mtime = dirMtime(parent);
+    dir.files.add(entry);
+    index(entry);
+    return entry;
+  }
+
+  public synchronized void save() throws IOException {
+    if (Files.notExists(root)) {
+      return;
+    }
+    Path file = root.resolve(INDEX_FILE);
+    Path tmp = root.resolve(INDEX_FILE + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(dirs.size());
+      for (Map.Entry<String, Dir> e : dirs.entrySet()) {
+        Dir dir = e.getValue();
+        writeString(out, e.getKey());
+        out.writeLong(dir.mtime);
+        out.writeInt(dir.subdirs.size());
+        for (String sub : dir.subdirs) {
+          writeString(out, sub);
+        }
+        out.writeInt(dir.files.size());
+        for (Entry entry : dir.files) {
+          writeString(out, entry.path.substring(entry.path.lastIndexOf('/') + 1));
+          out.writeLong(entry.size);
+          out.writeLong(entry.mtime);
+          out.writeLong(entry.hash);
+          out.writeLong(entry.fullHash);
+          out.writeLong(entry.sourceSize);
+        }
+      }
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a destination index: " + file);
+      }
+      int version = buffer.getInt();
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported destination index version " + version + ": " + file);
+      }
+      int dirCount = buffer.getInt();
+      for (int i = 0; i < dirCount; i++) {
+        String rel = readString(buffer);
+        Dir dir = new Dir(buffer.getLong());
+        int subdirCount = buffer.getInt();
+        for (int j = 0; j < subdirCount; j++) {
+          dir.subdirs.add(readString(buffer));
+        }
+        int fileCount = buffer.getInt();
+        for (int j = 0; j < fileCount; j++) {
+          String name = readString(buffer);
+          long size = buffer.getLong();
+          long mtime = buffer.getLong();
+          long hash = buffer.getLong();
+          long fullHash = version >= 2 ? buffer.getLong() : 0;
+          long sourceSize = version >= 3 ? buffer.getLong() : 0;
+          Entry entry = new Entry(name.toLowerCase(), child(rel, name), size, mtime, sourceSize, hash, fullHash);
+          dir.files.add(entry);
+          index(entry);
+        }
+        dirs.put(rel, dir);
+      }
+    }
+  }
+
+  private void refresh(Path path, String rel) throws IOException {
+    long mtime;
+    try {
+      mtime = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).lastModifiedTime().toMillis();
+    } catch (NoSuchFileException e) {
+      drop(rel);
+      return;
+    }
+    Dir dir = dirs.get(rel);
+    if (dir == null || dir.mtime != mtime) {
+      dir = rescan(path, rel, dir, mtime);
+    }
+    for (String sub : new ArrayList<>(dir.subdirs)) {
+      refresh(path.resolve(sub), child(rel, sub));
+    }
+  }
+
+  private Dir rescan(Path path, String rel, Dir old, long mtime) throws IOException {
+    rescanned++;
+    Map<String, Entry> previous = new HashMap<>();
+    if (old != null) {
+      for (Entry entry : old.files) {
+        previous.put(entry.path, entry);
+        unindex(entry);
+      }
+    }
+
+    Dir dir = new Dir(isRacy(mtime) ? -1 : mtime);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+      for (Path p : stream) {
+        String name = p.getFileName().toString();
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attrs.isDirectory()) {
+          if (!(rel.isEmpty() && name.startsWith(PRIVATE_PREFIX))) {
+            dir.subdirs.add(name);
+          }
+        } else if (attrs.isRegularFile() && !(rel.isEmpty() && name.startsWith(PRIVATE_PREFIX))) {
+          String entryPath = child(rel, name);
+          long size = attrs.size();
+          long fileMtime = attrs.lastModifiedTime().toMillis();
+          Entry known = previous.get(entryPath);
+          boolean unchanged = known != null && known.size == size && known.mtime == fileMtime;
+          Entry entry = unchanged ? new Entry(name.toLowerCase(), entryPath, size, fileMtime, known.sourceSize, known.hash, known.fullHash)
+              : new Entry(name.toLowerCase(), entryPath, size, fileMtime, 0, 0, 0);
+          dir.files.add(entry);
+          index(entry);
+        }
+      }
+    }
+    if (old != null) {
+      for (String sub : old.subdirs) {
+        if (!dir.subdirs.contains(sub)) {
+          drop(child(rel, sub));
+        }
+      }
+    }
+    dirs.put(rel, dir);
+    return dir;
+  }
+
+  private void ensureDir(Path path, String rel) throws IOException {
+    if (dirs.containsKey(rel)) {
+      return;
+    }
+    if (!rel.isEmpty()) {
+      Path parent = path.getParent();
+      String parentRel = relative(parent);
+      ensureDir(parent, parentRel);
+      Dir parentDir = dirs.get(parentRel);
+      parentDir.mtime = dirMtime(parent);
+      parentDir.subdirs.add(path.getFileName().toString());
+    }
+    dirs.put(rel, new Dir(dirMtime(path)));
+  }
+
+  private void drop(String rel) {
+    Dir dir = dirs.remove(rel);
+    if (dir == null) {
+      return;
+    }
+    for (Entry entry : dir.files) {
+      unindex(entry);
+    }
+    for (String sub : dir.subdirs) {
+      drop(child(rel, sub));
+    }
+  }
+
+  private void index(Entry entry) {
+    List<Entry> entries = byName.get(entry.name);
+    if (entries == null) {
+      entries = new ArrayList<>(1);
+      byName.put(entry.name, entries);
+    }
+    entries.add(entry);
+    List<Entry> sameSize = bySize.get(entry.getContentSize());
+    if (sameSize == null) {
+      sameSize = new ArrayList<>(1);
+      bySize.put(entry.getContentSize(), sameSize);
+    }
+    sameSize.add(entry);
+  }
+
+  private void unindex(Entry entry) {
+    List<Entry> entries = byName.get(entry.name);
+    if (entries != null) {
+      entries.remove(entry);
+      if (entries.isEmpty()) {
+        byName.remove(entry.name);
+      }
+    }
+    List<Entry> sameSize = bySize.get(entry.getContentSize());
+    if (sameSize != null) {
+      sameSize.remove(entry);
+      if (sameSize.isEmpty()) {
+        bySize.remove(entry.getContentSize());
+      }
+    }
+  }
+
+  private long dirMtime(Path dir) throws IOException {
+    long mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+    return isRacy(mtime) ? -1 : mtime;
+  }
+
+  private static boolean isRacy(long mtime) {
+    return System.currentTimeMillis() - mtime < RACY_MTIME_MS;
+  }
+
+  private String relative(Path dir) {
+    Path rel = root.relativize(dir);
+    StringBuilder sb = new StringBuilder();
+    for (Path p : rel) {
+      if (p.toString().isEmpty()) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(p.toString());
+    }
+    return sb.toString();
+  }
+
+  private static String child(String rel, String name) {
+    return rel.isEmpty() ? name : rel + "/" + name;
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,389 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.json.JSONException;
+
+/**
+ * Keeps importing the photos dropped in the source tree after the initial
+ * import, until the process is stopped. Directories are registered with a
+ * WatchService while the initial scan walks them, and a file is imported
+ * once its size and mtime have not changed for the quiet period, so that
+ * files still being copied are left alone. A file modified after its import
+ * is imported again, and the files of a failed import are retried after a
+ * delay.
+ * <p>
+ * The files that settled together go through the same stages as the batch:
+ * metadata extraction, dedup, GPS assignment, geocode prefetch and copy. The
+ * destination index, the geocode cache and the timeline of the photos seen
+ * so far stay in memory, and only the index, cache and journal files are
+ * written after each import.
+ */
+public class FolderWatcher {
+
+  public static final long DEFAULT_QUIET_MS = 2000;
+
+  private static final long IDLE_POLL_MS = 1000;
+  private static final long SETTLE_POLL_MS = 250;
+  private static final long RETRY_MS = 60000;
+
+  private static final class Pending {
+    long size;
+    long mtime;
+    long since;
+
+    Pending(long size, long mtime, long since) {
+      this.size = size;
+      this.mtime = mtime;
+      this.since = since;
+    }
+  }
+
+  private final String extension;
+  private final String dstFolder;
+  private final DestinationIndex index;
+  private final ScanJournal journal;
+  private final GeocodeCache geocodeCache;
+  private final long quietMs;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> directories = new HashMap<>();
+  private final Map<Path, Pending> pending = new LinkedHashMap<>();
+  // size and mtime of the files imported so far
+  private final Map<Path, Pending> known = new HashMap<>();
+  private final List<PhotoInfo> timeline = new ArrayList<>();
+
+  private int threads = MetadataExtractor.defaultThreads();
+  private boolean processGps = false;
+  private GpsAssigner gpsAssigner;
+  private GeocodePrefetcher prefetcher;
+  private int copyThreads = CopyEngine.DEFAULT_THREADS;
+  private boolean processLink = false;
+  private boolean dedup = false;
+  private PreviewService previews;
+  private int previewWidth;
+
+  public FolderWatcher(Path srcRoot, String extension, String dstFolder, DestinationIndex index, ScanJournal journal,
+      GeocodeCache geocodeCache, long quietMs) throws IOException {
+    this.extension = extension;
+    this.dstFolder = dstFolder;
+    this.index = index;
+    this.journal = journal;
+    this.geocodeCache = geocodeCache;
+    this.quietMs = quietMs;
+    this.watchService = srcRoot.getFileSystem().newWatchService();
+  }
+
+  public void setMetadata(int threads, boolean processGps) {
+    this.threads = threads;
+    this.processGps = processGps;
+  }
+
+  public void setGps(GpsAssigner gpsAssigner, GeocodePrefetcher prefetcher) {
+    this.gpsAssigner = gpsAssigner;
+    this.prefetcher = prefetcher;
+  }
+
+  public void setCopy(int copyThreads, boolean processLink) {
+    this.copyThreads = copyThreads;
+    this.processLink = processLink;
+  }
+
+  public void setDedup(boolean dedup) {
+    this.dedup = dedup;
+  }
+
+  public void setPreviews(PreviewService previews, int previewWidth) {
+    this.previews = previews;
+    this.previewWidth = previewWidth;
+  }
+
+  private boolean matches(Path path) {
+    return extension == null || "*".equals(extension)
+        || path.toString().toLowerCase().endsWith("." + extension.toLowerCase());
+  }
+
+  /**
+   * Registers a directory of the source tree, called for each directory the
+   * initial scan visits.
+   */
+  public void register(Path dir) throws IOException {
+    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    directories.put(key, dir);
+  }
+
+  // a directory created while watching, with the files already in it
+  private void registerTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        register(dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+        changed(path);
+        return FileVisitResult.CONTINUE;
+      }
+
+      // removed before it could be read
+      @Override
+      public FileVisitResult visitFileFailed(Path path, IOException e) {
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void changed(Path path) {
+    if (!matches(path)) {
+      return;
+    }
+    Pending file = pending.get(path);
+    if (file == null) {
+      pending.put(path, new Pending(-1, -1, System.nanoTime()));
+    } else {
+      file.since = System.nanoTime();
+    }
+  }
+
+  /**
+   * Imports the new files of the source tree as they settle. The photos of
+   * the initial import give the timeline used to locate the new ones. Only
+   * returns when the watcher is closed or the thread interrupted.
+   */
+  public void watch(List<PhotoInfo> imported) throws IOException {
+    for (PhotoInfo photo : imported) {
+      photo.setExistInDst(true);
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(photo.getSourcePath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        known.put(photo.getSourcePath(), new Pending(attrs.size(), attrs.lastModifiedTime().toMillis(), 0));
+      } catch (NoSuchFileException e) {
+        // removed since
+      }
+      timeline.add(photo);
+    }
+    Collections.sort(timeline);
+    RvLogger.info("Watching " + directories.size() + " folders for new files");
+
+    try {
+      while (true) {
+        WatchKey key = watchService.poll(pending.isEmpty() ? IDLE_POLL_MS : SETTLE_POLL_MS, TimeUnit.MILLISECONDS);
+        while (key != null) {
+          handle(key);
+          key = watchService.poll();
+        }
+        Map<Path, BasicFileAttributes> ready = settle();
+        if (!ready.isEmpty()) {
+          importFiles(ready);
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      RvLogger.info("Watch stopped");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      RvLogger.info("Watch interrupted");
+    }
+  }
+
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void handle(WatchKey key) throws IOException {
+    Path dir = directories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (dir == null) {
+        break;
+      }
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        RvLogger.info("Events lost in " + dir + ", listing it again");
+        relist(dir);
+        continue;
+      }
+      Path child = dir.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+        registerTree(child);
+      } else {
+        changed(child);
+      }
+    }
+    if (!key.reset()) {
+      directories.remove(key);
+    }
+  }
+
+  // only this directory: its subdirectories have their own keys
+  private void relist(Path dir) throws IOException {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+      for (Path entry : entries) {
+        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+          if (!directories.containsValue(entry)) {
+            registerTree(entry);
+          }
+        } else {
+          changed(entry);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // removed since
+    }
+  }
+
+  // files whose size and mtime did not change for the quiet period
+  private Map<Path, BasicFileAttributes> settle() throws IOException {
+    Map<Path, BasicFileAttributes> ready = new LinkedHashMap<>();
+    long now = System.nanoTime();
+    Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Pending> entry = it.next();
+      Pending file = entry.getValue();
+      BasicFileAttributes attrs;
+      try {
+        attrs = Files.readAttributes(entry.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      } catch (NoSuchFileException e) {
+        it.remove();
+        continue;
+      }
+      if (!attrs.isRegularFile()) {
+        it.remove();
+        continue;
+      }
+      long mtime = attrs.lastModifiedTime().toMillis();
+      if (attrs.size() != file.size || mtime != file.mtime) {
+        file.size = attrs.size();
+        file.mtime = mtime;
+        file.since = now;
+      } else if (now - file.since >= TimeUnit.MILLISECONDS.toNanos(quietMs)) {
+        Pending imported = known.get(entry.getKey());
+        // a modify event without a change of content, such as a touch of its attributes
+        if (imported == null || imported.size != file.size || imported.mtime != file.mtime) {
+          ready.put(entry.getKey(), attrs);
+        }
+        it.remove();
+      }
+    }
+    return ready;
+  }
+
+  private void importFiles(Map<Path, BasicFileAttributes> files) throws IOException {
+    long start = System.nanoTime();
+    List<PhotoInfo> batch = new ArrayList<>();
+    MetadataExtractor extractor = journal != null ? new MetadataExtractor(threads, processGps, journal) : null;
+    for (Map.Entry<Path, BasicFileAttributes> file : files.entrySet()) {
+      long scanStart = Metrics.start();
+      Path path = file.getKey();
+      boolean modified = known.containsKey(path);
+      if (modified) {
+        // imported again under a new name, its previous version stays in the destination
+        forget(path);
+      }
+      PhotoInfo info = new PhotoInfo(path, !modified && index.contains(path.getFileName().toString()));
+      batch.add(info);
+      if (extractor != null) {
+        extractor.submit(info, file.getValue());
+      }
+      Metrics.record(Metrics.Stage.SCAN, scanStart, file.getValue().size());
+    }
+
+    List<CopyEngine.Job> jobs = Collections.emptyList();
+    try {
+      if (extractor != null) {
+        extractor.awaitCompletion();
+        journal.save();
+      }
+      if (dedup) {
+        new Deduplicator(index).run(batch);
+      }
+      for (PhotoInfo photo : batch) {
+        int at = Collections.binarySearch(timeline, photo);
+        timeline.add(at < 0 ? -at - 1 : at, photo);
+      }
+      if (gpsAssigner != null) {
+        int located = gpsAssigner.assign(timeline);
+        RvLogger.info(located + " files located from a close shot");
+        prefetcher.prefetch(batch);
+      }
+      jobs = CopyEngine.jobs(batch);
+      try {
+        new CopyEngine(copyThreads, dstFolder, processLink, index).run(jobs);
+      } finally {
+        index.save();
+        if (geocodeCache != null) {
+          geocodeCache.save();
+        }
+      }
+      if (previews != null) {
+        previews.generate(CopyEngine.dstFiles(jobs), previewWidth, threads);
+      }
+    } catch (IOException | ParseException | ImageReadException | ImageWriteException | JSONException e) {
+      RvLogger.warn("Import of " + batch.size() + " new files failed", e);
+    }
+
+    Set<Path> copied = new HashSet<>();
+    for (CopyEngine.Job job : jobs) {
+      if (job.getDstFile() != null) {
+        copied.add(job.source);
+      }
+    }
+    int imported = 0;
+    int failed = 0;
+    for (PhotoInfo photo : batch) {
+      Path path = photo.getSourcePath();
+      BasicFileAttributes attrs = files.get(path);
+      long mtime = attrs.lastModifiedTime().toMillis();
+      if (copied.contains(path)) {
+        imported++;
+        photo.setExistInDst(true);
+      } else if (!photo.isExistInDst()) {
+        failed++;
+        forget(path);
+        pending.put(path, new Pending(attrs.size(), mtime, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MS)));
+        continue;
+      }
+      known.put(path, new Pending(attrs.size(), mtime, 0));
+    }
+    RvLogger.throughput("watch", batch.size(), start);
+    RvLogger.info(imported + " new files imported");
+    if (failed > 0) {
+      RvLogger.info(failed + " files not imported, retrying in " + TimeUnit.MILLISECONDS.toSeconds(RETRY_MS) + " s");
+    }
+  }
+
+  // drops a file from the timeline, before it is imported again
+  private void forget(Path path) {
+    known.remove(path);
+    Iterator<PhotoInfo> it = timeline.iterator();
+    while (it.hasNext()) {
+      if (it.next().getSourcePath().equals(path)) {
+        it.remove();
+      }
+    }
+  }
+}
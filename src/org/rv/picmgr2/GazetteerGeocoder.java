@@ -0,0 +1,178 @@
+package org.rv.picmgr2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline reverse geocoding against a local gazetteer in the GeoNames
+ * tab separated format (cities1000.txt, cities15000.txt, ...): name in
+ * column 2, latitude and longitude in columns 5 and 6, feature class in
+ * column 7 and ISO country code in column 9. Only populated places are
+ * kept.
+ * <p>
+ * Places are bucketed in a grid of one degree cells; a lookup scans the
+ * cells within the maximum distance of the coordinate and returns the
+ * nearest place, with the country code and place name in the same form as
+ * the Google short names.
+ */
+public class GazetteerGeocoder implements Geocoder {
+
+  public static final double DEFAULT_MAX_DISTANCE_KM = 50;
+
+  private static final double EARTH_RADIUS_KM = 6371;
+  private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180;
+  private static final int LAT_CELLS = 180;
+  private static final int LNG_CELLS = 360;
+
+  private final double maxDistanceKm;
+  private final int[] cellStart = new int[LAT_CELLS * LNG_CELLS + 1];
+  private final float[] lats;
+  private final float[] lngs;
+  private final String[] names;
+  private final String[] countries;
+
+  private GazetteerGeocoder(List<String[]> places, double maxDistanceKm) {
+    this.maxDistanceKm = maxDistanceKm;
+    int count = places.size();
+    lats = new float[count];
+    lngs = new float[count];
+    names = new String[count];
+    countries = new String[count];
+
+    // counting sort of the places by cell
+    int[] cells = new int[count];
+    for (int i = 0; i < count; i++) {
+      String[] place = places.get(i);
+      cells[i] = cell(latCell(Double.parseDouble(place[1])), lngCell(Double.parseDouble(place[2])));
+      cellStart[cells[i] + 1]++;
+    }
+    for (int c = 0; c < LAT_CELLS * LNG_CELLS; c++) {
+      cellStart[c + 1] += cellStart[c];
+    }
+    int[] next = new int[LAT_CELLS * LNG_CELLS];
+    System.arraycopy(cellStart, 0, next, 0, next.length);
+    for (int i = 0; i < count; i++) {
+      String[] place = places.get(i);
+      int j = next[cells[i]]++;
+      names[j] = place[0];
+      lats[j] = Float.parseFloat(place[1]);
+      lngs[j] = Float.parseFloat(place[2]);
+      countries[j] = place[3];
+    }
+  }
+
+  public static GazetteerGeocoder load(Path file) throws IOException {
+    return load(file, DEFAULT_MAX_DISTANCE_KM);
+  }
+
+  public static GazetteerGeocoder load(Path file, double maxDistanceKm) throws IOException {
+    long start = System.nanoTime();
+    List<String[]> places = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        String[] columns = line.split("\t", 10);
+        if (columns.length < 9 || !"P".equals(columns[6])) {
+          continue;
+        }
+        try {
+          Double.parseDouble(columns[4]);
+          Double.parseDouble(columns[5]);
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        places.add(new String[] { columns[1], columns[4], columns[5], columns[8].intern() });
+      }
+    }
+    GazetteerGeocoder geocoder = new GazetteerGeocoder(places, maxDistanceKm);
+    RvLogger.throughput("gazetteer", places.size(), start);
+    return geocoder;
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  @Override
+  public JsonInfo reverse(double lat, double lng) {
+    int nearest = nearest(lat, lng);
+    if (nearest < 0) {
+      return null;
+    }
+    JsonInfo info = new JsonInfo();
+    info.setCountry(countries[nearest]);
+    info.setCity(names[nearest]);
+    return info;
+  }
+
+  private int nearest(double lat, double lng) {
+    double cosLat = Math.cos(Math.toRadians(lat));
+    int latRadius = (int) Math.ceil(maxDistanceKm / KM_PER_DEGREE);
+    int lngRadius = cosLat < 1e-6 ? LNG_CELLS / 2 : (int) Math.min(LNG_CELLS / 2, Math.ceil(maxDistanceKm / (KM_PER_DEGREE * cosLat)));
+    int latCell = latCell(lat);
+    int lngCell = lngCell(lng);
+
+    int best = -1;
+    double bestDistance = maxDistanceKm;
+    for (int y = Math.max(0, latCell - latRadius); y <= Math.min(LAT_CELLS - 1, latCell + latRadius); y++) {
+      for (int dx = -lngRadius; dx <= lngRadius; dx++) {
+        int c = cell(y, (lngCell + dx + LNG_CELLS) % LNG_CELLS);
+        for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+          double distance = distanceKm(lat, lng, cosLat, lats[i], lngs[i]);
+          if (distance <= bestDistance) {
+            bestDistance = distance;
+            best = i;
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  // equirectangular approximation, accurate enough within the search radius
+  private static double distanceKm(double lat1, double lng1, double cosLat, double lat2, double lng2) {
+    double dLng = Math.abs(lng2 - lng1);
+    if (dLng > 180) {
+      dLng = 360 - dLng;
+    }
+    double x = dLng * cosLat;
+    double y = lat2 - lat1;
+    return KM_PER_DEGREE * Math.sqrt(x * x + y * y);
+  }
+
+  private static int latCell(double lat) {
+    return Math.min(LAT_CELLS - 1, Math.max(0, (int) Math.floor(lat + 90)));
+  }
+
+  private static int lngCell(double lng) {
+    int cell = (int) Math.floor(lng + 180) % LNG_CELLS;
+    return cell < 0 ? cell + LNG_CELLS : cell;
+  }
+
+  private static int cell(int latCell, int lngCell) {
+    return latCell * LNG_CELLS + lngCell;
+  }
+
+  @Override
+  public String getName() {
+    return "gazetteer";
+  }
+
+  @Override
+  public boolean isRemote() {
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "gazetteer (" + size() + " places)";
+  }
+}
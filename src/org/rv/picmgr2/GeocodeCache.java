@@ -0,0 +1,249 @@
+package org.rv.picmgr2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reverse geocode results keyed by a grid cell of the coordinates, so that
+ * shots taken a few meters apart share one lookup. The cell size is given as
+ * a number of decimal places of a degree (3 is about 110 m). Entries expire
+ * after a TTL and the least recently used ones are evicted past a maximum
+ * size. Each entry records the geocoder that resolved it, and entries from
+ * another geocoder are dropped on lookup rather than served. The cache is
+ * persisted in the destination root, except for results without a country
+ * (quota errors, no match) which are only kept for a few minutes in memory.
+ */
+public class GeocodeCache {
+
+  public static final String CACHE_FILE = ".rvpicmgr.geocache";
+
+  public static final int DEFAULT_PRECISION = 3;
+  public static final int MAX_PRECISION = 6;
+
+  private static final int MAGIC = 0x52564743; // "RVGC"
+  private static final int VERSION = 2;
+
+  private static final int DEFAULT_MAX_ENTRIES = 100000;
+  private static final long DEFAULT_TTL_MS = TimeUnit.DAYS.toMillis(180);
+  private static final long EMPTY_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final class CachedLocation {
+    final String country;
+    final String city;
+    final String source;
+    final long fetchedAt;
+
+    CachedLocation(String country, String city, String source, long fetchedAt) {
+      this.country = country;
+      this.city = city;
+      this.source = source;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final Path file;
+  private final int precision;
+  private final double scale;
+  private final long ttlMs;
+  private final LinkedHashMap<Long, CachedLocation> entries;
+  private int hits = 0;
+  private int misses = 0;
+  private boolean dirty = false;
+
+  public GeocodeCache(Path file, int precision) {
+    this(file, precision, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MS);
+  }
+
+  public GeocodeCache(Path file, int precision, final int maxEntries, long ttlMs) {
+    if (precision < 0 || precision > MAX_PRECISION) {
+      throw new IllegalArgumentException("Geocode precision must be between 0 and " + MAX_PRECISION + " : " + precision);
+    }
+    this.file = file;
+    this.precision = precision;
+    this.scale = Math.pow(10, precision);
+    this.ttlMs = ttlMs;
+    this.entries = new LinkedHashMap<Long, CachedLocation>(1024, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, CachedLocation> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public static GeocodeCache open(Path file, int precision) {
+    GeocodeCache cache = new GeocodeCache(file, precision);
+    if (Files.exists(file)) {
+      try {
+        cache.load();
+      } catch (IOException | RuntimeException e) {
+        RvLogger.warn("Geocode cache unreadable, starting a new one " + file, e);
+        cache.entries.clear();
+      }
+    }
+    RvLogger.info(cache.entries.size() + " locations in geocode cache");
+    return cache;
+  }
+
+  /**
+   * Returns the cached result for the cell holding the coordinates, or null
+   * when there is none, it has expired or it was resolved by another source.
+   */
+  public synchronized JsonInfo get(double lat, double lng, String source) {
+    Long key = cell(lat, lng);
+    CachedLocation entry = entries.get(key);
+    if (entry != null && (isExpired(entry, System.currentTimeMillis()) || !source.equals(entry.source))) {
+      entries.remove(key);
+      dirty = true;
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    JsonInfo info = new JsonInfo();
+    info.setCountry(entry.country);
+    info.setCity(entry.city);
+    return info;
+  }
+
+  public synchronized void put(double lat, double lng, JsonInfo info, String source) {
+    if (info == null) {
+      return;
+    }
+    CachedLocation entry = new CachedLocation(info.getCountry(), info.getCity(), source, System.currentTimeMillis());
+    entries.put(cell(lat, lng), entry);
+    dirty = true;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+
+  public synchronized void save() throws IOException {
+    if (file == null || !dirty || Files.notExists(file.toAbsolutePath().getParent())) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      int count = 0;
+      for (CachedLocation entry : entries.values()) {
+        if (isPersistent(entry) && !isExpired(entry, now)) {
+          count++;
+        }
+      }
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(precision);
+      out.writeInt(count);
+      // least recently used first, so that loading keeps the access order
+      for (Map.Entry<Long, CachedLocation> e : entries.entrySet()) {
+        CachedLocation entry = e.getValue();
+        if (!isPersistent(entry) || isExpired(entry, now)) {
+          continue;
+        }
+        out.writeLong(e.getKey());
+        out.writeLong(entry.fetchedAt);
+        writeString(out, entry.country);
+        writeString(out, entry.city);
+        writeString(out, entry.source);
+      }
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    dirty = false;
+  }
+
+  private void load() throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException("Not a geocode cache: " + file);
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported geocode cache version " + version + ": " + file);
+      }
+      if (buffer.getInt() != precision) {
+        // cells of another size can't be reused
+        RvLogger.info("Geocode precision changed, discarding cache " + file);
+        dirty = true;
+        return;
+      }
+      long now = System.currentTimeMillis();
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        long key = buffer.getLong();
+        long fetchedAt = buffer.getLong();
+        String country = readString(buffer);
+        String city = readString(buffer);
+        String source = readString(buffer);
+        CachedLocation entry = new CachedLocation(country, city, source, fetchedAt);
+        if (isPersistent(entry) && !isExpired(entry, now)) {
+          entries.put(key, entry);
+        }
+      }
+    }
+  }
+
+  private boolean isExpired(CachedLocation entry, long now) {
+    return now - entry.fetchedAt > (isPersistent(entry) ? ttlMs : EMPTY_TTL_MS);
+  }
+
+  private static boolean isPersistent(CachedLocation entry) {
+    return entry.country != null;
+  }
+
+  long cell(double lat, double lng) {
+    long latCell = Math.round(lat * scale);
+    long lngCell = Math.round(lng * scale);
+    return (latCell << 32) | (lngCell & 0xffffffffL);
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeShort(0xffff);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xffff;
+    if (length == 0xffff) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,132 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
+import org.json.JSONException;
+
+/**
+ * Resolves the locations of all the photos to copy before the copy starts.
+ * Coordinates falling in the same geocode cache cell are resolved once, the
+ * lookups run on a few threads and, when the geocoder is remote, under a
+ * global rate limit with failed lookups retried with an exponential backoff.
+ * The copy then finds every location already set on its photo.
+ */
+public class GeocodePrefetcher {
+
+  public static final int DEFAULT_THREADS = 4;
+  public static final double DEFAULT_RATE = 5;
+  public static final int DEFAULT_RETRIES = 3;
+
+  private static final long BACKOFF_MS = 500;
+
+  private final int threads;
+  private final RateLimiter rateLimiter;
+  private final int retries;
+
+  public GeocodePrefetcher(int threads, double requestsPerSecond, int retries) {
+    this.threads = threads;
+    this.rateLimiter = new RateLimiter(requestsPerSecond);
+    this.retries = retries;
+  }
+
+  public void prefetch(List<PhotoInfo> photos) throws IOException {
+    long start = System.nanoTime();
+    Map<Long, List<PhotoInfo>> byCell = new LinkedHashMap<>();
+    for (PhotoInfo photo : photos) {
+      if (photo.isExistInDst() || !photo.hasGpsInfo()) {
+        continue;
+      }
+      GPSInfo gps = photo.getGpsInfo();
+      long cell;
+      try {
+        cell = JsonUtil.cell(gps.getLatitudeAsDegreesNorth(), gps.getLongitudeAsDegreesEast());
+      } catch (Exception e) {
+        RvLogger.warn(photo.getSourcePath() + " invalid GPS info", e);
+        continue;
+      }
+      List<PhotoInfo> group = byCell.get(cell);
+      if (group == null) {
+        group = new ArrayList<>();
+        byCell.put(cell, group);
+      }
+      group.add(photo);
+    }
+    if (byCell.isEmpty()) {
+      return;
+    }
+
+    final AtomicInteger failed = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, byCell.size()));
+    List<Future<?>> pending = new ArrayList<>();
+    for (final List<PhotoInfo> group : byCell.values()) {
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          GPSInfo gps = group.get(0).getGpsInfo();
+          JsonInfo info = resolve(gps.getLatitudeAsDegreesNorth(), gps.getLongitudeAsDegreesEast());
+          if (info == null) {
+            failed.incrementAndGet();
+          }
+          for (PhotoInfo photo : group) {
+            photo.setJsonInfo(info);
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    try {
+      for (Future<?> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IOException("Geocoding interrupted", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    RvLogger.throughput("geocode", byCell.size(), start);
+    if (failed.get() > 0) {
+      RvLogger.info(failed.get() + " locations could not be resolved");
+    }
+  }
+
+  private JsonInfo resolve(double lat, double lng) throws InterruptedException {
+    JsonInfo info = JsonUtil.cached(lat, lng);
+    if (info != null) {
+      return info;
+    }
+    // a local geocoder needs neither the rate limit nor the retries
+    boolean remote = JsonUtil.isRemote();
+    for (int attempt = 0; ; attempt++) {
+      if (remote) {
+        rateLimiter.acquire();
+      }
+      try {
+        return JsonUtil.fetch(lat, lng);
+      } catch (IOException | JSONException e) {
+        if (!remote || attempt >= retries) {
+          RvLogger.warn("Giving up geocoding " + lat + "_" + lng + " after " + (attempt + 1) + " attempts", e);
+          return null;
+        }
+        Thread.sleep(BACKOFF_MS << attempt);
+      }
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+
+import org.json.JSONException;
+
+/**
+ * Resolves the country and city of a coordinate.
+ */
+public interface Geocoder {
+
+  /**
+   * Returns the location of the coordinate, or null when it can't be
+   * resolved.
+   */
+  JsonInfo reverse(double lat, double lng) throws IOException, JSONException;
+
+  /**
+   * Short name of the source, recorded with the cached results.
+   */
+  String getName();
+
+  /**
+   * Whether lookups go over the network, and so are worth rate limiting and
+   * retrying.
+   */
+  boolean isRemote();
+
+}
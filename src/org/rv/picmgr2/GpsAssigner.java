@@ -0,0 +1,81 @@
+package org.rv.picmgr2;
+
+import java.util.List;
+
+/**
+ * Gives each new photo without GPS info the location of the closest photo
+ * in time that has one, as findCloserDateWithGpsInfo did for one photo, but
+ * for the whole sorted list in two sweeps.
+ * <p>
+ * Photos are assigned in order, so a photo that just received a location
+ * counts as located for the following ones, while the photos after it only
+ * count with the GPS info read from their file. A suffix sweep records the
+ * next photo with its own GPS info, and the forward sweep keeps the last
+ * located one.
+ */
+public class GpsAssigner {
+
+  public static final long DEFAULT_MAX_DISTANCE_MS = MetaTagUtil.aWeek;
+
+  private final long maxDistanceMs;
+
+  public GpsAssigner() {
+    this(DEFAULT_MAX_DISTANCE_MS);
+  }
+
+  public GpsAssigner(long maxDistanceMs) {
+    this.maxDistanceMs = maxDistanceMs;
+  }
+
+  /**
+   * Assigns masters to the photos of the list, which must be sorted by date.
+   * Returns the number of photos that received a location.
+   */
+  public int assign(List<PhotoInfo> sorted) {
+    int size = sorted.size();
+    PhotoInfo[] photos = sorted.toArray(new PhotoInfo[size]);
+
+    int[] nextWithGps = new int[size];
+    int next = -1;
+    for (int i = size - 1; i >= 0; i--) {
+      nextWithGps[i] = next;
+      if (photos[i].hasGpsInfo()) {
+        next = i;
+      }
+    }
+
+    int assigned = 0;
+    PhotoInfo before = null;
+    for (int i = 0; i < size; i++) {
+      PhotoInfo current = photos[i];
+      if (!current.isExistInDst() && !current.hasGpsInfo()) {
+        long start = Metrics.start();
+        PhotoInfo after = nextWithGps[i] < 0 ? null : photos[nextWithGps[i]];
+        PhotoInfo master = closer(current, before, after);
+        current.setMaster(master);
+        if (master != null) {
+          assigned++;
+        }
+        Metrics.record(Metrics.Stage.GPS, start);
+      }
+      if (current.hasGpsInfo()) {
+        before = current;
+      }
+    }
+    return assigned;
+  }
+
+  private PhotoInfo closer(PhotoInfo current, PhotoInfo before, PhotoInfo after) {
+    if (!current.hasTakenOn()) {
+      return null;
+    }
+    long time = current.takenOn;
+    long delta1 = (before == null || !before.hasTakenOn()) ? Long.MAX_VALUE : time - before.takenOn;
+    long delta2 = (after == null || !after.hasTakenOn()) ? Long.MAX_VALUE : after.takenOn - time;
+
+    if (Math.min(delta1, delta2) > maxDistanceMs) {
+      return null;
+    }
+    return delta1 < delta2 ? before : after;
+  }
+}
@@ -0,0 +1,70 @@
+package org.rv.picmgr2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reverse geocoding through the Google geocode JSON API, or any server
+ * answering the same requests (a local stub for instance).
+ */
+public class HttpGeocoder implements Geocoder {
+
+  public static final String DEFAULT_URL = "http://maps.googleapis.com/maps/api/geocode/json";
+
+  private static final int TIMEOUT_MS = 10000;
+
+  private final String baseUrl;
+
+  public HttpGeocoder() {
+    this(DEFAULT_URL);
+  }
+
+  public HttpGeocoder(String baseUrl) {
+    this.baseUrl = baseUrl;
+  }
+
+  @Override
+  public JsonInfo reverse(double lat, double lng) throws IOException, JSONException {
+    URL url = new URL(baseUrl + "?latlng=" + lat + "," + lng + "&sensor=true");
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    try (InputStream is = connection.getInputStream()) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] bytes = new byte[8192];
+      int read;
+      while ((read = is.read(bytes)) != -1) {
+        buffer.write(bytes, 0, read);
+      }
+      JSONObject root = new JSONObject(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+      String status = root.optString("status");
+      // answered with HTTP 200 but worth another try, unlike ZERO_RESULTS or REQUEST_DENIED
+      if ("OVER_QUERY_LIMIT".equals(status) || "UNKNOWN_ERROR".equals(status)) {
+        throw new IOException("Geocoder replied " + status + " for " + lat + "," + lng);
+      }
+      return JsonUtil.extractJsonInfo(root);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return baseUrl;
+  }
+
+  @Override
+  public boolean isRemote() {
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return baseUrl;
+  }
+}
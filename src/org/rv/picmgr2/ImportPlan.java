@@ -0,0 +1,183 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.ImageWriteException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The copies an import would make, written as JSON by -plan and executed by
+ * -apply without scanning the source again. Each entry keeps the source, its
+ * destination folder and name, the expected final name after collision
+ * renaming, and the GPS position and location to apply, together with totals
+ * for files, bytes, EXIF rewrites and distinct locations.
+ */
+public class ImportPlan {
+
+  private static final int VERSION = 1;
+
+  private final String destination;
+  private final List<CopyEngine.Job> jobs;
+  private final List<Long> sizes;
+  private final int skipped;
+  private final int geocodeLookups;
+
+  private ImportPlan(String destination, List<CopyEngine.Job> jobs, List<Long> sizes, int skipped, int geocodeLookups) {
+    this.destination = destination;
+    this.jobs = jobs;
+    this.sizes = sizes;
+    this.skipped = skipped;
+    this.geocodeLookups = geocodeLookups;
+  }
+
+  public static ImportPlan build(List<PhotoInfo> photos, String baseDst, int geocodeLookups) throws IOException, ImageReadException, JSONException {
+    List<CopyEngine.Job> jobs = CopyEngine.jobs(photos);
+    List<Long> sizes = new ArrayList<>();
+    Set<Path> planned = new HashSet<>();
+    for (CopyEngine.Job job : jobs) {
+      sizes.add(Files.size(job.source));
+      Path dstFile = Paths.get(baseDst, job.folderDest, job.newFileName);
+      int i = 1;
+      while (planned.contains(dstFile) || Files.exists(dstFile)) {
+        dstFile = Paths.get(baseDst, job.folderDest, job.newFileName+"__"+i);
+        i++;
+      }
+      planned.add(dstFile);
+      job.dstFile = dstFile;
+    }
+    return new ImportPlan(Paths.get(baseDst).toAbsolutePath().toString(), jobs, sizes, photos.size() - jobs.size(), geocodeLookups);
+  }
+
+  public String getDestination() {
+    return destination;
+  }
+
+  public int size() {
+    return jobs.size();
+  }
+
+  public void write(Path file) throws IOException, JSONException {
+    long bytes = 0;
+    int rewrites = 0;
+    Set<String> locations = new HashSet<>();
+    JSONArray entries = new JSONArray();
+    for (int i = 0; i < jobs.size(); i++) {
+      CopyEngine.Job job = jobs.get(i);
+      JSONObject entry = new JSONObject();
+      entry.put("source", job.source.toAbsolutePath().toString());
+      entry.put("folder", job.folderDest);
+      entry.put("name", job.newFileName);
+      entry.put("target", Paths.get(destination).relativize(job.dstFile.toAbsolutePath()).toString());
+      entry.put("size", sizes.get(i));
+      if (job.rewrite) {
+        entry.put("rewrite", true);
+        entry.put("lat", job.latitude);
+        entry.put("lng", job.longitude);
+        rewrites++;
+      }
+      if (job.location != null) {
+        entry.put("country", job.location.getCountry());
+        entry.put("city", job.location.getCity());
+        locations.add(job.location.getCountry() + "/" + job.location.getCity());
+      }
+      bytes += sizes.get(i);
+      entries.put(entry);
+    }
+
+    JSONObject totals = new JSONObject();
+    totals.put("files", jobs.size());
+    totals.put("bytes", bytes);
+    totals.put("rewrites", rewrites);
+    totals.put("skipped", skipped);
+    totals.put("locations", locations.size());
+    totals.put("geocodeLookups", geocodeLookups);
+
+    JSONObject root = new JSONObject();
+    root.put("version", VERSION);
+    root.put("created", System.currentTimeMillis());
+    root.put("destination", destination);
+    root.put("totals", totals);
+    root.put("entries", entries);
+
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writer.write(root.toString(1));
+    }
+    RvLogger.info("Plan written to " + file + " : " + totals);
+  }
+
+  public static ImportPlan read(Path file) throws IOException, JSONException {
+    JSONObject root;
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      root = new JSONObject(new JSONTokener(reader));
+    }
+    if (root.getInt("version") != VERSION) {
+      throw new JSONException("Unsupported plan version " + root.getInt("version") + " : " + file);
+    }
+    String destination = root.getString("destination");
+    JSONArray entries = root.getJSONArray("entries");
+    List<CopyEngine.Job> jobs = new ArrayList<>();
+    List<Long> sizes = new ArrayList<>();
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject entry = entries.getJSONObject(i);
+      JsonInfo location = null;
+      if (entry.has("country")) {
+        location = new JsonInfo();
+        location.setCountry(entry.optString("country", null));
+        location.setCity(entry.optString("city", null));
+      }
+      boolean rewrite = entry.optBoolean("rewrite", false);
+      CopyEngine.Job job = new CopyEngine.Job(Paths.get(entry.getString("source")), entry.getString("folder"), entry.getString("name"),
+          rewrite, rewrite ? entry.getDouble("lat") : 0, rewrite ? entry.getDouble("lng") : 0, location);
+      job.dstFile = Paths.get(destination, entry.getString("target"));
+      jobs.add(job);
+      sizes.add(entry.getLong("size"));
+    }
+    JSONObject totals = root.getJSONObject("totals");
+    return new ImportPlan(destination, jobs, sizes, totals.optInt("skipped"), totals.optInt("geocodeLookups"));
+  }
+
+  /**
+   * Copies the planned files. Sources that disappeared since the plan was
+   * made are skipped, as are the targets already copied by a previous run;
+   * names are checked again for collisions.
+   */
+  public void apply(int threads, boolean processLink) throws IOException, ImageReadException, ImageWriteException {
+    List<CopyEngine.Job> toCopy = new ArrayList<>();
+    for (int i = 0; i < jobs.size(); i++) {
+      CopyEngine.Job job = jobs.get(i);
+      if (Files.notExists(job.source)) {
+        RvLogger.info(job.source + " no longer exists, skipped");
+        continue;
+      }
+      long size = Files.size(job.source);
+      if (size != sizes.get(i)) {
+        RvLogger.info(job.source + " changed since the plan was made");
+      } else if (Files.exists(job.dstFile) && (job.rewrite || Files.size(job.dstFile) == size)) {
+        RvLogger.info(job.dstFile + " already there, skipped");
+        continue;
+      }
+      toCopy.add(job);
+    }
+    DestinationIndex index = DestinationIndex.open(Paths.get(destination));
+    try {
+      new CopyEngine(threads, destination, processLink, index).run(toCopy);
+    } finally {
+      index.save();
+    }
+    RvLogger.info(toCopy.size() + " planned files copied");
+  }
+}
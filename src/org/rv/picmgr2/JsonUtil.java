@@ -1,10 +1,7 @@
 package org.rv.picmgr2;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
@@ -14,14 +11,18 @@ import org.json.JSONObject;
 
 public class JsonUtil {
 
-  private static JsonInfo extractJsonInfo(String json) throws JSONException {
+  static JsonInfo extractJsonInfo(String json) throws JSONException {
 
     if (json == null)
       return null;
 
+    return extractJsonInfo(new JSONObject(json));
+  }
+
+  static JsonInfo extractJsonInfo(JSONObject root) throws JSONException {
+
     JsonInfo info = new JsonInfo();
 
-    JSONObject root = new JSONObject(json);
     System.out.println(root.getString("status"));
     JSONArray results = root.getJSONArray("results");
 
@@ -50,8 +51,21 @@ public class JsonUtil {
   }
 
   
-  private static HashMap<String,JsonInfo> cache = new HashMap<>();
-  private static int counter = 0;
+  private static volatile GeocodeCache cache = new GeocodeCache(null, GeocodeCache.DEFAULT_PRECISION);
+  private static volatile Geocoder geocoder = new HttpGeocoder();
+  private static final AtomicInteger counter = new AtomicInteger(0);
+
+  public static void setCache(GeocodeCache geocodeCache) {
+    cache = geocodeCache;
+  }
+
+  public static void setGeocoder(Geocoder newGeocoder) {
+    geocoder = newGeocoder;
+  }
+
+  public static int getFetchCount() {
+    return counter.get();
+  }
   
   public static JsonInfo retrieve(GPSInfo info) throws ImageReadException,JSONException {
     // System.setProperty("http.proxyHost", "web-gw1.csintra.net");
@@ -60,45 +74,44 @@ public class JsonUtil {
     double lat = info.getLatitudeAsDegreesNorth();
     double lng = info.getLongitudeAsDegreesEast();
 
-    String key = lat+ "_" +lng;
-    
-    if (cache.containsKey(key))  {
-      JsonInfo fromCache = cache.get(key);
-      RvLogger.info("Cache Hit for "+key+ " cache size:" + cache.size());
+    JsonInfo fromCache = cached(lat, lng);
+    if (fromCache != null)  {
       return fromCache;
     }
-    counter ++;
-    String theURL = "http://maps.googleapis.com/maps/api/geocode/json?latlng=" + lat + "," + lng + "&sensor=true";
-    URL url;
     try {
-      url = new URL(theURL);
-    } catch (MalformedURLException e) {
-      RvLogger.warn(theURL, e);
+      return fetch(lat, lng);
+    } catch (IOException e) {
+      RvLogger.warn("Error geocoding " + lat + "_" + lng + " with " + geocoder, e);
       return null;
     }
-    InputStream is;
-    try {
-      is = url.openStream();
-
-      int ptr = 0;
-      StringBuilder buffer = new StringBuilder();
-
-      while ((ptr = is.read()) != -1) {
-        buffer.append((char) ptr);
-      }
-
-      String rep = buffer.toString();
+  }
 
-      JsonInfo jsoninfo = extractJsonInfo(rep);
+  static long cell(double lat, double lng) {
+    return cache.cell(lat, lng);
+  }
 
-      cache.put(key, jsoninfo);
-      RvLogger.info(counter + ") Fetched geocode : "+JsonInfo.safeToString(jsoninfo));
-      return jsoninfo;
+  static boolean isRemote() {
+    return geocoder.isRemote();
+  }
 
-    } catch (IOException e) {
-      RvLogger.warn("Error fetching " + theURL, e);
-      return null;
+  static JsonInfo cached(double lat, double lng) {
+    JsonInfo fromCache = cache.get(lat, lng, geocoder.getName());
+    if (fromCache != null)  {
+      RvLogger.info("Cache Hit for "+lat+ "_" +lng+ " cache size:" + cache.size());
+      Metrics.increment("geocache.hits");
+    } else {
+      Metrics.increment("geocache.misses");
     }
+    return fromCache;
+  }
+
+  static JsonInfo fetch(double lat, double lng) throws IOException, JSONException {
+    long start = Metrics.start();
+    JsonInfo jsoninfo = geocoder.reverse(lat, lng);
+    Metrics.record(Metrics.Stage.GEOCODE, start);
+    cache.put(lat, lng, jsoninfo, geocoder.getName());
+    RvLogger.info(counter.incrementAndGet() + ") Fetched geocode : "+JsonInfo.safeToString(jsoninfo));
+    return jsoninfo;
   }
 
 }
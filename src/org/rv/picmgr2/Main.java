@@ -13,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.imaging.ImageReadException;
@@ -25,31 +26,95 @@ public final class Main {
 
     List<String> params = new ArrayList<>(Arrays.asList(args));
 
-    if (params.size()<2) {
-      System.out.println(" Usage : [-gps] src dest");
-
-      return;
-    }
-
-    boolean photoMode = true;
+    boolean _photoMode = true;
     String _extension = "jpg";
-    String toRem = null;
+    int threads = MetadataExtractor.defaultThreads();
+    int geoPrecision = GeocodeCache.DEFAULT_PRECISION;
+    String gazetteer = null;
+    String geoUrl = null;
+    int geoThreads = GeocodePrefetcher.DEFAULT_THREADS;
+    double geoRate = GeocodePrefetcher.DEFAULT_RATE;
+    long gpsWindow = GpsAssigner.DEFAULT_MAX_DISTANCE_MS;
+    int copyThreads = CopyEngine.DEFAULT_THREADS;
+    String planFile = null;
+    String applyFile = null;
+    String metricsFile = null;
+    long metricsEvery = 0;
+    long watchQuiet = FolderWatcher.DEFAULT_QUIET_MS;
+    int previewWidth = 0;
+    long previewCache = PreviewService.DEFAULT_MAX_BYTES;
+    List<String> toRem = new ArrayList<>();
     for (String param : params) {
       if (param.startsWith("-ext:")) {
         _extension = param.substring("-ext:".length());
-        toRem = param;
+        toRem.add(param);
         if (!param.toLowerCase().endsWith("jpg")) {
-          photoMode = false;
+          _photoMode = false;
         }
+      } else if (param.startsWith("-threads:")) {
+        threads = Math.max(1, Integer.parseInt(param.substring("-threads:".length())));
+        toRem.add(param);
+      } else if (param.startsWith("-geoprec:")) {
+        geoPrecision = Integer.parseInt(param.substring("-geoprec:".length()));
+        toRem.add(param);
+      } else if (param.startsWith("-gazetteer:")) {
+        gazetteer = param.substring("-gazetteer:".length());
+        toRem.add(param);
+      } else if (param.startsWith("-geourl:")) {
+        geoUrl = param.substring("-geourl:".length());
+        toRem.add(param);
+      } else if (param.startsWith("-geothreads:")) {
+        geoThreads = Math.max(1, Integer.parseInt(param.substring("-geothreads:".length())));
+        toRem.add(param);
+      } else if (param.startsWith("-georate:")) {
+        geoRate = Double.parseDouble(param.substring("-georate:".length()));
+        toRem.add(param);
+      } else if (param.startsWith("-gpswindow:")) {
+        gpsWindow = TimeUnit.HOURS.toMillis(Long.parseLong(param.substring("-gpswindow:".length())));
+        toRem.add(param);
+      } else if (param.startsWith("-copythreads:")) {
+        copyThreads = Math.max(1, Integer.parseInt(param.substring("-copythreads:".length())));
+        toRem.add(param);
+      } else if (param.startsWith("-plan:")) {
+        planFile = param.substring("-plan:".length());
+        toRem.add(param);
+      } else if (param.startsWith("-apply:")) {
+        applyFile = param.substring("-apply:".length());
+        toRem.add(param);
+      } else if (param.startsWith("-metrics:")) {
+        metricsFile = param.substring("-metrics:".length());
+        toRem.add(param);
+      } else if (param.startsWith("-metricsevery:")) {
+        metricsEvery = Long.parseLong(param.substring("-metricsevery:".length()));
+        toRem.add(param);
+      } else if (param.startsWith("-watchquiet:")) {
+        watchQuiet = TimeUnit.SECONDS.toMillis(Long.parseLong(param.substring("-watchquiet:".length())));
+        toRem.add(param);
+      } else if (param.startsWith("-previews:")) {
+        previewWidth = Integer.parseInt(param.substring("-previews:".length()));
+        toRem.add(param);
+      } else if (param.startsWith("-previewcache:")) {
+        previewCache = Long.parseLong(param.substring("-previewcache:".length())) << 20;
+        toRem.add(param);
       }
     }
-    if (toRem!=null) {
-      params.remove(toRem);
+    params.removeAll(toRem);
+
+    if (metricsFile != null) {
+      Path metricsPath = Paths.get(metricsFile);
+      Metrics.enable();
+      Metrics.dumpOnExit(metricsPath);
+      if (metricsEvery > 0) {
+        Metrics.dumpEvery(metricsPath, metricsEvery);
+      }
+      RvLogger.info("Metrics written to " + metricsFile);
     }
     
     final String extension = _extension;
+    final boolean photoMode = _photoMode;
 
     RvLogger.info("Process extension : "+extension);
+    RvLogger.info("Metadata threads : "+threads);
     
     final boolean processGps = params.remove("-gps");
     if (processGps) {
@@ -65,6 +130,35 @@ public final class Main {
       RvLogger.info("Do not process Location link");
     }
 
+    final boolean dedup = params.remove("-dedup");
+    if (dedup) {
+      RvLogger.info("Detect duplicates by content");
+    }
+
+    final boolean watch = params.remove("-watch");
+    if (watch) {
+      if (planFile != null || applyFile != null) {
+        RvLogger.exit("-watch can't be used with -plan or -apply");
+        return;
+      }
+      RvLogger.info("Watch source folder after import");
+    }
+
+    if (applyFile != null) {
+      ImportPlan plan = ImportPlan.read(Paths.get(applyFile));
+      RvLogger.info("Apply plan " + applyFile + " : " + plan.size() + " files to " + plan.getDestination());
+      plan.apply(copyThreads, processLink);
+      return;
+    }
+
+    if (params.size()<2) {
+      System.out.println(" Usage : [-gps] [-link] [-dedup] [-ext:jpg] [-threads:N] [-geoprec:N] [-gazetteer:file] [-geourl:url] [-geothreads:N] [-georate:N] [-gpswindow:hours] [-copythreads:N] [-plan:file.json] [-watch] [-watchquiet:seconds] [-previews:width] [-previewcache:MB] src dest");
+      System.out.println("         [-link] [-copythreads:N] -apply:file.json");
+      System.out.println("         [-metrics:file.json] [-metricsevery:seconds] with either form");
+
+      return;
+    }
+
     String srcFolder = params.remove(0);
     Path srcPath = Paths.get(srcFolder);
 
@@ -80,60 +174,138 @@ public final class Main {
       return;
     }
 
-    final StringBuilder existingImages = FileUtil.existingFiles(dstPath,extension);
-    RvLogger.info("existingImages size (chars) :" + existingImages.length());
+    final GeocodeCache geocodeCache = processGps ? GeocodeCache.open(dstPath.resolve(GeocodeCache.CACHE_FILE), geoPrecision) : null;
+    if (geocodeCache != null) {
+      JsonUtil.setCache(geocodeCache);
+      if (gazetteer != null) {
+        JsonUtil.setGeocoder(GazetteerGeocoder.load(Paths.get(gazetteer)));
+      } else if (geoUrl != null) {
+        JsonUtil.setGeocoder(new HttpGeocoder(geoUrl));
+      }
+    }
+
+    final DestinationIndex existingImages = DestinationIndex.open(dstPath);
+    final PreviewService previews = photoMode && previewWidth > 0 && planFile == null ? PreviewService.open(dstPath.resolve(PreviewService.CACHE_DIR), previewCache) : null;
+    final ScanJournal journal = photoMode ? ScanJournal.open(dstPath.resolve(ScanJournal.JOURNAL_FILE)) : null;
 
     final List<PhotoInfo> allImages = new ArrayList<>();
 
     final AtomicInteger newFiles = new AtomicInteger(0); 
+    final MetadataExtractor extractor = photoMode ? new MetadataExtractor(threads, processGps, journal) : null;
+    final FolderWatcher watcher = watch ? new FolderWatcher(srcPath, extension, dstFolder, existingImages, journal, geocodeCache, watchQuiet) : null;
+    if (watcher != null) {
+      watcher.setMetadata(threads, processGps);
+      watcher.setCopy(copyThreads, processLink);
+      watcher.setDedup(dedup);
+      watcher.setPreviews(previews, previewWidth);
+      if (processGps) {
+        watcher.setGps(new GpsAssigner(gpsWindow), new GeocodePrefetcher(geoThreads, geoRate, GeocodePrefetcher.DEFAULT_RETRIES));
+      }
+    }
+    long scanStart = System.nanoTime();
     Files.walkFileTree(srcPath, new SimpleFileVisitor<Path>() {
 
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (watcher != null) {
+          watcher.register(dir);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
       @Override
       public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
         if (extension==null || "*".equals(extension) 
             || path.toString().toLowerCase().endsWith("."+extension.toLowerCase())) {
-        boolean exist = existingImages.indexOf(path.getFileName().toString().toLowerCase() + "#") >= 0;
-        allImages.add(new PhotoInfo(path, exist));
+        long start = Metrics.start();
+        boolean exist = existingImages.contains(path.getFileName().toString());
+        PhotoInfo info = new PhotoInfo(path, exist);
+        allImages.add(info);
+        if (extractor != null) {
+          extractor.submit(info, attrs);
+        }
         if (!exist) {
           newFiles.incrementAndGet();
         }
+        Metrics.record(Metrics.Stage.SCAN, start, attrs.size());
         }
         return FileVisitResult.CONTINUE;
       }
   });
+    RvLogger.throughput("scan", allImages.size(), scanStart);
+
+    if (dedup) {
+      newFiles.set(new Deduplicator(existingImages).run(allImages));
+    }
 
     if (newFiles.get() == 0) {
+      if (extractor != null) {
+        if (watcher != null) {
+          extractor.awaitCompletion();
+        } else {
+          extractor.cancel();
+        }
+      }
+      if (planFile != null) {
+        // an empty plan, so that an older one can't be applied by mistake
+        ImportPlan.build(allImages, dstFolder, JsonUtil.getFetchCount()).write(Paths.get(planFile));
+        return;
+      }
+      existingImages.save();
+      if (journal != null) {
+        journal.save();
+      }
       RvLogger.exit("No new file to process");
+      if (watcher != null) {
+        watcher.watch(allImages);
+      }
       return;
     }
 
-    RvLogger.info(newFiles + " to process");
-    
-    if(photoMode) {
-     for (PhotoInfo info : allImages) {
-      boolean ok = MetaTagUtil.extractMetaTags(info,processGps);
-      if (!ok) {
-        RvLogger.info(info.getSourcePath() + " can't extract metadata");
+    if (extractor != null) {
+      extractor.awaitCompletion();
+      if (planFile == null) {
+        journal.save();
       }
-     }
     }
+
+    RvLogger.info(newFiles + " to process");
  
     if (processGps) { 
-        Collections.sort(allImages);
+      Collections.sort(allImages);
+      long gpsStart = System.nanoTime();
+      int located = new GpsAssigner(gpsWindow).assign(allImages);
+      RvLogger.throughput("gps", allImages.size(), gpsStart);
+      RvLogger.info(located + " files located from a close shot");
+
+      new GeocodePrefetcher(geoThreads, geoRate, GeocodePrefetcher.DEFAULT_RETRIES).prefetch(allImages);
+    }
     
-     for (int i = 0; i < allImages.size(); i++) {
-      PhotoInfo currentPhoto = allImages.get(i);
-      
-        if (!currentPhoto.isExistInDst()) {
-          if (!currentPhoto.hasGpsInfo()) {
-            currentPhoto.setMaster(MetaTagUtil.findCloserDateWithGpsInfo(i, allImages));
-            }
-        }
+    if (planFile != null) {
+      // a dry run: nothing is written into the destination, not even the index or caches
+      ImportPlan.build(allImages, dstFolder, JsonUtil.getFetchCount()).write(Paths.get(planFile));
+      return;
+    }
+
+    List<CopyEngine.Job> jobs = CopyEngine.jobs(allImages);
+    try {
+      new CopyEngine(copyThreads, dstFolder, processLink, existingImages).run(jobs);
+    } finally {
+      existingImages.save();
+      if (geocodeCache != null) {
+        geocodeCache.save();
+        RvLogger.info("Geocode cache : " + geocodeCache.getHits() + " hits, " + geocodeCache.getMisses() + " misses");
       }
     }
-    
-    FileUtil.copy(allImages, dstFolder, processLink);
     RvLogger.info(newFiles + " processed succesfully");
+
+    if (previews != null) {
+      previews.generate(CopyEngine.dstFiles(jobs), previewWidth, threads);
+    }
+
+    if (watcher != null) {
+      watcher.watch(allImages);
+    }
   }
 }
           
@@ -5,19 +5,25 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Path;
 import java.text.ParseException;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.ImageWriteException;
-import org.apache.commons.imaging.Imaging;
 import org.apache.commons.imaging.common.IImageMetadata;
+import org.apache.commons.imaging.common.bytesource.ByteSource;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFile;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFileChannel;
 import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
+import org.apache.commons.imaging.formats.jpeg.JpegImageParser;
+import org.apache.commons.imaging.formats.jpeg.JpegMetadataSegments;
 import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
 import org.apache.commons.imaging.formats.tiff.TiffField;
 import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
 import org.apache.commons.imaging.formats.tiff.constants.ExifTagConstants;
+import org.apache.commons.imaging.formats.tiff.constants.GpsTagConstants;
 import org.apache.commons.imaging.formats.tiff.taginfos.TagInfo;
 import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
 
@@ -26,49 +32,75 @@ public class MetaTagUtil {
   public static boolean extractMetaTags(PhotoInfo photo, boolean processGps) throws IOException,
       ParseException, ImageReadException {
 
-    IImageMetadata metadata;
+    TiffField[] fields;
     try {
-      metadata = Imaging.getMetadata(photo.getSourcePath().toFile());
+      fields = readExifTags(photo.getSourcePath().toFile(), processGps ? DATE_AND_GPS_TAGS : DATE_TAGS);
     } catch (ImageReadException e) {
       RvLogger.info("SKIP [photo:" + photo.getSourcePath() + "]ImageReadException:"+e.getMessage());
       return false;
     }
-    
-    
-    if (metadata == null) {
-      RvLogger.info("SKIP [photo:" + photo.getSourcePath() + "]Metadata is null");
-      return false;
-    }
 
-    if (!(metadata instanceof JpegImageMetadata)) {
-      RvLogger.info("[photo:" + photo.getSourcePath() + "]Metadata not instance of JpegImageMetadata " + metadata);
+    if (fields == null) {
+      RvLogger.info("SKIP [photo:" + photo.getSourcePath() + "]No EXIF data");
       return false;
     }
 
-    JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
-    TiffImageMetadata exifMetadata = jpegMetadata.getExif();
-
-    if (processGps && null != exifMetadata) {
-      TiffImageMetadata.GPSInfo gpsInfo = exifMetadata.getGPS();
+    if (processGps) {
+      TiffImageMetadata.GPSInfo gpsInfo = TiffImageMetadata.getGPS(fields[1], fields[2], fields[3], fields[4]);
       photo.setGpsInfo(gpsInfo);
     }
 
-    String date = extractTagValue(jpegMetadata, ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
-    if (date == null) {
+    TiffField date = fields[0];
+    long takenOn = DateUtil.NO_DATE;
+    if (date != null) {
+      byte[] ascii = date.getByteArrayValue();
+      takenOn = DateUtil.toEpoch(ascii, 0, ascii.length);
+    }
+    if (takenOn == DateUtil.NO_DATE) {
       RvLogger.info("No date takenOn found for " + photo.getSourcePath() + " -> SKIP");
       return false;
     } else {
-      Date dateTaken = DateUtil.toDate(date);
-      photo.setTakenOn(dateTaken);
+      photo.setTakenOn(takenOn);
       return true;
     }
   }
 
-  private static String extractTagValue(JpegImageMetadata jpegMetadata, TagInfo tagInfo) throws ImageReadException {
-    TiffField field = jpegMetadata.findEXIFValueWithExactMatch(tagInfo);
-    if (field == null)
-      return null;
-    return "" + field.getValue();
+  private static final TagInfo[] DATE_TAGS = { ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL };
+  private static final TagInfo[] DATE_AND_GPS_TAGS = { ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL,
+      GpsTagConstants.GPS_TAG_GPS_LATITUDE_REF, GpsTagConstants.GPS_TAG_GPS_LATITUDE,
+      GpsTagConstants.GPS_TAG_GPS_LONGITUDE_REF, GpsTagConstants.GPS_TAG_GPS_LONGITUDE };
+
+  /**
+   * Reads only the given EXIF tags: the EXIF segment is located in the header
+   * and the TIFF directories are walked in place, without building any of
+   * the other fields, the maker note or the thumbnail. Returns null when the
+   * file has no EXIF segment.
+   */
+  static TiffField[] readExifTags(File file, TagInfo[] tags) throws ImageReadException, IOException {
+    JpegImageParser parser = new JpegImageParser();
+    ByteSourceFileChannel byteSource = new ByteSourceFileChannel(file);
+    try {
+      return parser.readExifTags(parser.readMetadataSegments(byteSource), tags);
+    } finally {
+      byteSource.close();
+    }
+  }
+
+  /**
+   * Reads the JPEG metadata with a single open and a single header scan, where
+   * Imaging.getMetadata would open the file to guess its format and then
+   * traverse it once for EXIF and once for Photoshop data. Only the header
+   * region is read from disk.
+   */
+  static IImageMetadata readMetadata(File file, Map<String, Object> params) throws ImageReadException, IOException {
+    JpegImageParser parser = new JpegImageParser();
+    ByteSourceFileChannel byteSource = new ByteSourceFileChannel(file);
+    try {
+      JpegMetadataSegments segments = parser.readMetadataSegments(byteSource);
+      return parser.getMetadata(segments, params);
+    } finally {
+      byteSource.close();
+    }
   }
 
   static long aWeek = 7 * 24 * 60 * 60 * 1000;
@@ -95,11 +127,10 @@ public class MetaTagUtil {
       }
     }
     
-    Date c = allImages.get(startIndex).takenOn;
-    if (c==null) {return null;}
-    long current = c.getTime();
-    long delta1 = (before==null) ? Long.MAX_VALUE : current - before.takenOn.getTime();
-    long delta2 = (after==null) ? Long.MAX_VALUE : after.takenOn.getTime() - current;
+    if (!allImages.get(startIndex).hasTakenOn()) {return null;}
+    long current = allImages.get(startIndex).takenOn;
+    long delta1 = (before==null) ? Long.MAX_VALUE : current - before.takenOn;
+    long delta2 = (after==null) ? Long.MAX_VALUE : after.takenOn - current;
       
     if (Math.min(delta1, delta2) > aWeek) {
       return null;
@@ -108,9 +139,24 @@ public class MetaTagUtil {
   }
 
   public static void copyAndSetExifTag(PhotoInfo photoSrc, File dst) throws ImageReadException, ImageWriteException, IOException {
+    double longitude = photoSrc.getGpsInfo().getLongitudeAsDegreesEast();
+    double latitude = photoSrc.getGpsInfo().getLatitudeAsDegreesNorth();
+    copyAndSetExifTag(photoSrc.getSourcePath(), latitude, longitude, dst);
+  }
+
+  public static void copyAndSetExifTag(Path src, double latitude, double longitude, File dst) throws ImageReadException, ImageWriteException, IOException {
+    copyAndSetExifTag(src, new ByteSourceFile(src.toFile()), latitude, longitude, dst);
+  }
+
+  /**
+   * Rewrites from source, a byte source of src that is streamed once from
+   * start to end.
+   */
+  static void copyAndSetExifTag(Path src, ByteSource source, double latitude, double longitude, File dst) throws ImageReadException,
+      ImageWriteException, IOException {
      TiffOutputSet outputSet = new TiffOutputSet();
 
-    IImageMetadata metadata = Imaging.getMetadata(photoSrc.getSourcePath().toFile());
+    IImageMetadata metadata = readMetadata(src.toFile(), null);
     JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
     if (null != jpegMetadata) {
       // note that exif might be null if no Exif metadata is found.
@@ -119,12 +165,10 @@ public class MetaTagUtil {
         outputSet = exif.getOutputSet();
       }
     }
-    double longitude = photoSrc.getGpsInfo().getLongitudeAsDegreesEast();
-    double latitude = photoSrc.getGpsInfo().getLatitudeAsDegreesNorth();
     outputSet.setGPSInDegrees(longitude, latitude);
     OutputStream os = new FileOutputStream(dst);
     os = new BufferedOutputStream(os);
-    new ExifRewriter().updateExifMetadataLossless(photoSrc.getSourcePath().toFile(), os, outputSet);
+    new ExifRewriter().updateExifMetadataLosslessStreaming(source, os, outputSet);
     os.close();
     os = null;
   }
@@ -0,0 +1,128 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.imaging.ImageReadException;
+
+/**
+ * Runs MetaTagUtil.extractMetaTags on a bounded pool of worker threads so
+ * that EXIF parsing overlaps with the source tree walk. When the queue is
+ * full the submitting thread runs the extraction itself, which throttles the
+ * walk instead of buffering the whole tree.
+ */
+public class MetadataExtractor {
+
+  private final boolean processGps;
+  private final ScanJournal journal;
+  private final ThreadPoolExecutor executor;
+  private final List<Future<Boolean>> pending = new ArrayList<>();
+  private final AtomicInteger failed = new AtomicInteger(0);
+  private final AtomicInteger journalHits = new AtomicInteger(0);
+  private final long startNanos = System.nanoTime();
+
+  public MetadataExtractor(int threads, boolean processGps, ScanJournal journal) {
+    this.processGps = processGps;
+    this.journal = journal;
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(0);
+
+          // daemons, so that a walk failing before awaitCompletion or cancel doesn't keep the JVM alive
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "metadata-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  public void submit(final PhotoInfo info, BasicFileAttributes attrs) {
+    final long size = attrs.size();
+    final long mtime = attrs.lastModifiedTime().toMillis();
+    if (journal != null) {
+      journal.seen(info.getSourcePath());
+    }
+    pending.add(executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException, ParseException, ImageReadException {
+        long start = Metrics.start();
+        Boolean journaled = journal == null ? null : journal.apply(info, size, mtime, processGps);
+        boolean ok;
+        if (journaled != null) {
+          journalHits.incrementAndGet();
+          Metrics.increment("journal.hits");
+          ok = journaled;
+        } else {
+          ok = MetaTagUtil.extractMetaTags(info, processGps);
+          if (journal != null) {
+            journal.record(info, size, mtime, processGps, ok);
+            Metrics.increment("journal.misses");
+          }
+        }
+        Metrics.record(Metrics.Stage.METADATA, start, size);
+        if (!ok) {
+          failed.incrementAndGet();
+          RvLogger.info(info.getSourcePath() + " can't extract metadata");
+        }
+        return ok;
+      }
+    }));
+  }
+
+  /**
+   * Waits for every submitted extraction, rethrowing the first failure the
+   * same way the sequential loop did.
+   */
+  public void awaitCompletion() throws IOException, ParseException, ImageReadException {
+    executor.shutdown();
+    try {
+      for (Future<Boolean> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Metadata extraction interrupted", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof ParseException) {
+        throw (ParseException) cause;
+      } else if (cause instanceof ImageReadException) {
+        throw (ImageReadException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+    RvLogger.throughput("metadata", pending.size(), startNanos);
+    if (journal != null) {
+      RvLogger.info(journalHits.get() + " files taken from scan journal");
+    }
+    if (failed.get() > 0) {
+      RvLogger.info(failed.get() + " files without usable metadata");
+    }
+  }
+
+  public void cancel() {
+    executor.shutdownNow();
+  }
+
+  public static int defaultThreads() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+}
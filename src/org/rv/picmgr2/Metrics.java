@@ -0,0 +1,286 @@
+package org.rv.picmgr2;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Per-stage counters and latency histograms of an import, dumped as JSON at
+ * the end of the run and optionally every few seconds while it runs.
+ * <p>
+ * Call sites take a start time with start() and hand it back to record()
+ * once a file is done. When metrics are off, start() returns 0 and record()
+ * returns at once, so the cost is a field read per call. Latencies go to
+ * log scale buckets, four per power of two, which bounds the error of the
+ * percentiles to about 20%.
+ */
+public class Metrics {
+
+  public enum Stage {
+    SCAN, METADATA, GPS, GEOCODE, COPY;
+
+    String key() {
+      return name().toLowerCase();
+    }
+  }
+
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private static final class StageMetrics {
+    final AtomicLong files = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+    final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong last = new AtomicLong(Long.MIN_VALUE);
+    final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+  }
+
+  private static volatile boolean enabled = false;
+  private static final long startNanos = System.nanoTime();
+  private static final StageMetrics[] stages = new StageMetrics[Stage.values().length];
+  private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+  private static ScheduledExecutorService dumper;
+
+  static {
+    for (int i = 0; i < stages.length; i++) {
+      stages[i] = new StageMetrics();
+    }
+  }
+
+  public static void enable() {
+    enabled = true;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  public static void record(Stage stage, long start) {
+    record(stage, start, 0);
+  }
+
+  /**
+   * Records one file done by the stage, started at start, with the number
+   * of bytes it read or wrote.
+   */
+  public static void record(Stage stage, long start, long bytes) {
+    if (!enabled) {
+      return;
+    }
+    long end = System.nanoTime();
+    long nanos = Math.max(0, end - start);
+    StageMetrics metrics = stages[stage.ordinal()];
+    metrics.files.incrementAndGet();
+    metrics.bytes.addAndGet(bytes);
+    metrics.totalNanos.addAndGet(nanos);
+    metrics.histogram.incrementAndGet(bucket(nanos));
+    long max;
+    while (nanos > (max = metrics.maxNanos.get()) && !metrics.maxNanos.compareAndSet(max, nanos)) {
+      // retry
+    }
+    long first;
+    while (start < (first = metrics.first.get()) && !metrics.first.compareAndSet(first, start)) {
+      // retry
+    }
+    long last;
+    while (end > (last = metrics.last.get()) && !metrics.last.compareAndSet(last, end)) {
+      // retry
+    }
+  }
+
+  public static void increment(String counter) {
+    add(counter, 1);
+  }
+
+  public static void add(String counter, long delta) {
+    if (!enabled) {
+      return;
+    }
+    AtomicLong value = counters.get(counter);
+    if (value == null) {
+      AtomicLong created = new AtomicLong();
+      value = counters.putIfAbsent(counter, created);
+      if (value == null) {
+        value = created;
+      }
+    }
+    value.addAndGet(delta);
+  }
+
+  static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int log = 63 - Long.numberOfLeadingZeros(nanos);
+    int sub = (int) (nanos >>> (log - 2)) & (SUB_BUCKETS - 1);
+    return (log - 1) * SUB_BUCKETS + sub;
+  }
+
+  // middle of the bucket
+  static double bucketValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int log = bucket / SUB_BUCKETS + 1;
+    int sub = bucket % SUB_BUCKETS;
+    return Math.pow(2, log) * (1 + (sub + 0.5) / SUB_BUCKETS);
+  }
+
+  private static double percentile(AtomicLongArray histogram, long count, double fraction) {
+    long rank = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += histogram.get(i);
+      if (seen >= Math.max(1, rank)) {
+        return bucketValue(i);
+      }
+    }
+    return 0;
+  }
+
+  public static JSONObject toJson() throws JSONException {
+    JSONObject root = new JSONObject();
+    root.put("elapsedMs", (System.nanoTime() - startNanos) / 1000000);
+
+    JSONObject stagesJson = new JSONObject();
+    for (Stage stage : Stage.values()) {
+      StageMetrics metrics = stages[stage.ordinal()];
+      long files = metrics.files.get();
+      if (files == 0) {
+        continue;
+      }
+      double wallSeconds = Math.max(1, metrics.last.get() - metrics.first.get()) / 1e9;
+      JSONObject json = new JSONObject();
+      json.put("files", files);
+      json.put("bytes", metrics.bytes.get());
+      json.put("wallMs", (long) (wallSeconds * 1000));
+      json.put("filesPerSec", round(files / wallSeconds));
+      json.put("bytesPerSec", (long) (metrics.bytes.get() / wallSeconds));
+      JSONObject latency = new JSONObject();
+      latency.put("meanMs", round(metrics.totalNanos.get() / (double) files / 1e6));
+      long max = metrics.maxNanos.get();
+      latency.put("p50Ms", round(Math.min(max, percentile(metrics.histogram, files, 0.50)) / 1e6));
+      latency.put("p99Ms", round(Math.min(max, percentile(metrics.histogram, files, 0.99)) / 1e6));
+      latency.put("maxMs", round(max / 1e6));
+      json.put("latency", latency);
+      stagesJson.put(stage.key(), json);
+    }
+    root.put("stages", stagesJson);
+
+    Map<String, Long> sorted = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+      sorted.put(counter.getKey(), counter.getValue().get());
+    }
+    JSONObject countersJson = new JSONObject();
+    JSONObject ratios = new JSONObject();
+    for (Map.Entry<String, Long> counter : sorted.entrySet()) {
+      countersJson.put(counter.getKey(), counter.getValue());
+      if (counter.getKey().endsWith(".hits")) {
+        String name = counter.getKey().substring(0, counter.getKey().length() - ".hits".length());
+        Long misses = sorted.get(name + ".misses");
+        long total = counter.getValue() + (misses == null ? 0 : misses);
+        if (total > 0) {
+          ratios.put(name + ".hitRatio", round(counter.getValue() / (double) total));
+        }
+      }
+    }
+    root.put("counters", countersJson);
+    root.put("ratios", ratios);
+    return root;
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 1000) / 1000.0;
+  }
+
+  public static synchronized void dump(Path file) throws IOException, JSONException {
+    if (!enabled) {
+      return;
+    }
+    String json = toJson().toString(1);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      writer.write(json);
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Dumps the metrics to file every period seconds, from a daemon thread,
+   * until stopDumping() is called.
+   */
+  public static synchronized void dumpEvery(final Path file, long period) {
+    if (!enabled || dumper != null) {
+      return;
+    }
+    dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dumper.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          dump(file);
+        } catch (IOException | JSONException e) {
+          RvLogger.warn("Can't write metrics to " + file, e);
+        }
+      }
+    }, period, period, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Dumps the metrics to file when the JVM exits, whichever way the run
+   * ends.
+   */
+  public static void dumpOnExit(final Path file) {
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stopDumping();
+        try {
+          dump(file);
+        } catch (IOException | JSONException e) {
+          RvLogger.warn("Can't write metrics to " + file, e);
+        }
+      }
+    }, "metrics-exit"));
+  }
+
+  public static synchronized void stopDumping() {
+    if (dumper != null) {
+      dumper.shutdownNow();
+      dumper = null;
+    }
+  }
+}
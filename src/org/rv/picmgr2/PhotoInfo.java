@@ -1,7 +1,6 @@
 package org.rv.picmgr2;
 
 import java.nio.file.Path;
-import java.util.Date;
 
 import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
@@ -10,12 +9,13 @@ import org.json.JSONException;
 public class PhotoInfo implements Comparable<PhotoInfo> {
 
   final Path sourcePath;
-  final boolean existInDst;
+  boolean existInDst;
 
-  Date takenOn;
+  long takenOn = DateUtil.NO_DATE;
   GPSInfo gpsInfo;
   PhotoInfo master;
   JsonInfo jsonInfo;
+  boolean jsonInfoResolved = false;
 
 
   public PhotoInfo(Path path, boolean existInDst) {
@@ -33,10 +33,11 @@ public class PhotoInfo implements Comparable<PhotoInfo> {
           } else {
             newName = jsonInfoTmp.getCountry()+"-"+jsonInfoTmp.getCity()+"-"+getSourcePath().getFileName();
           }
+          newName = StringUtil.safeChar(StringUtil.stripAccents(newName));
+        } else { 
+          // location unknown, keep the original name
+          newName = getSourcePath().getFileName().toString();
         }
-        newName = StringUtil.safeChar(StringUtil.stripAccents(newName));
-      } else { 
-        newName = getSourcePath().getFileName().toString();
     }
     System.out.println(newName);
     return newName;
@@ -44,17 +45,19 @@ public class PhotoInfo implements Comparable<PhotoInfo> {
   
   @Override
   public int compareTo(PhotoInfo o) {
-    Date t1 = retrieveTakenOn();
-    Date t2 = o.retrieveTakenOn();
-    return t1.compareTo(t2);
+    return Long.compare(retrieveTakenOn(), o.retrieveTakenOn());
   }
 
-  public Date retrieveTakenOn() {
-    if (takenOn!=null) return takenOn;
-    return new Date(this.sourcePath.toFile().lastModified());
+  public long retrieveTakenOn() {
+    if (hasTakenOn()) return takenOn;
+    return this.sourcePath.toFile().lastModified();
   }
 
-  public void setTakenOn(Date takenOn) {
+  public boolean hasTakenOn() {
+    return takenOn != DateUtil.NO_DATE;
+  }
+
+  public void setTakenOn(long takenOn) {
     this.takenOn = takenOn;
   }
 
@@ -66,6 +69,10 @@ public class PhotoInfo implements Comparable<PhotoInfo> {
     return existInDst;
   }
 
+  public void setExistInDst(boolean existInDst) {
+    this.existInDst = existInDst;
+  }
+
   public GPSInfo getGpsInfo() {
     return gpsInfo;
   }
@@ -96,12 +103,18 @@ public class PhotoInfo implements Comparable<PhotoInfo> {
     if (!hasGpsInfo()) {
       return null;
     }
-    if (jsonInfo==null) {
+    if (!jsonInfoResolved) {
       jsonInfo = JsonUtil.retrieve(getGpsInfo());
+      jsonInfoResolved = true;
     }
     return jsonInfo;
   }
 
+  public void setJsonInfo(JsonInfo jsonInfo) {
+    this.jsonInfo = jsonInfo;
+    this.jsonInfoResolved = true;
+  }
+
   @Override
   public String toString() {
     return sourcePath.getFileName().toString();
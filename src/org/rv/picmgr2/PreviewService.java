@@ -0,0 +1,294 @@
+package org.rv.picmgr2;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.common.bytesource.ByteSourceArray;
+import org.apache.commons.imaging.common.bytesource.ByteSourceFileChannel;
+import org.apache.commons.imaging.formats.jpeg.JpegConstants;
+import org.apache.commons.imaging.formats.jpeg.JpegImageParser;
+import org.apache.commons.imaging.formats.jpeg.JpegMetadataSegments;
+import org.apache.commons.imaging.formats.jpeg.segments.SofnSegment;
+
+/**
+ * JPEG previews of photos at least a given width, made the cheapest way
+ * available: the EXIF thumbnail when it is wide enough, else the photo
+ * decoded at 1/8, 1/4 or 1/2 of its size, else the full decode. Only the
+ * header is read to choose. Decoded images are scaled down to the width
+ * before they are encoded.
+ * <p>
+ * Previews are cached as files named after the hash of the path, size and
+ * mtime of the photo and the width asked for, so a modified photo gets a new
+ * preview. The least recently used ones are deleted past a maximum total
+ * size; the file mtimes keep the order between runs.
+ */
+public class PreviewService {
+
+  public static final String CACHE_DIR = ".rvpicmgr.previews";
+  public static final long DEFAULT_MAX_BYTES = 512L << 20;
+
+  private static final String SUFFIX = ".jpg";
+  private static final int[] SCALES = { 8, 4, 2 };
+
+  private final Path dir;
+  private final long maxBytes;
+  // file name to size, least recently used first
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  private PreviewService(Path dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  public static PreviewService open(Path dir, long maxBytes) throws IOException {
+    PreviewService service = new PreviewService(dir, maxBytes);
+    Files.createDirectories(dir);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.tmp")) {
+      for (Path tmp : stream) {
+        Files.deleteIfExists(tmp);
+      }
+    }
+    final Map<Path, BasicFileAttributes> files = new HashMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path file : stream) {
+        files.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+      }
+    }
+    List<Path> sorted = new ArrayList<>(files.keySet());
+    Collections.sort(sorted, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return files.get(a).lastModifiedTime().compareTo(files.get(b).lastModifiedTime());
+      }
+    });
+    for (Path file : sorted) {
+      service.entries.put(file.getFileName().toString(), files.get(file).size());
+      service.totalBytes += files.get(file).size();
+    }
+    RvLogger.info(sorted.size() + " previews in cache, " + (service.totalBytes >> 20) + " MB");
+    return service;
+  }
+
+  /**
+   * Returns a JPEG preview of the photo at least minWidth pixels wide, or as
+   * wide as the photo when it is narrower.
+   */
+  public byte[] preview(Path photo, int minWidth) throws IOException, ImageReadException {
+    BasicFileAttributes attrs = Files.readAttributes(photo, BasicFileAttributes.class);
+    String name = key(photo, attrs, minWidth);
+    byte[] cached = get(name);
+    if (cached != null) {
+      Metrics.increment("preview.hits");
+      return cached;
+    }
+    Metrics.increment("preview.misses");
+    byte[] preview = render(photo, minWidth);
+    put(name, preview);
+    return preview;
+  }
+
+  /**
+   * Makes the previews of the files on a few threads. A file that can't be
+   * read is logged and skipped.
+   */
+  public void generate(List<Path> photos, final int minWidth, int threads) throws IOException {
+    if (photos.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, photos.size())));
+    List<Future<Void>> pending = new ArrayList<>();
+    for (final Path photo : photos) {
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          try {
+            preview(photo, minWidth);
+          } catch (ImageReadException | IOException | RuntimeException e) {
+            RvLogger.warn("Can't make preview of " + photo, e);
+          }
+          return null;
+        }
+      }));
+    }
+    executor.shutdown();
+    try {
+      for (Future<Void> future : pending) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IOException("Previews interrupted", e);
+    } catch (ExecutionException e) {
+      executor.shutdownNow();
+      throw new IOException(e.getCause());
+    }
+    RvLogger.throughput("previews", photos.size(), start);
+  }
+
+  static String key(Path photo, BasicFileAttributes attrs, int minWidth) {
+    byte[] identity = (photo.toAbsolutePath() + "\u0000" + attrs.size() + "\u0000"
+        + attrs.lastModifiedTime().toMillis() + "\u0000" + minWidth).getBytes(StandardCharsets.UTF_8);
+    XxHash64 hash = new XxHash64(0);
+    hash.update(identity, 0, identity.length);
+    return String.format("%016x", hash.digest()) + SUFFIX;
+  }
+
+  private byte[] render(Path photo, int minWidth) throws IOException, ImageReadException {
+    JpegImageParser parser = new JpegImageParser();
+    ByteSourceFileChannel byteSource = new ByteSourceFileChannel(photo.toFile());
+    try {
+      JpegMetadataSegments segments = parser.readMetadataSegments(byteSource);
+      byte[] thumbnail = parser.readExifThumbnail(segments);
+      if (thumbnail != null) {
+        try {
+          Dimension size = parser.getImageSize(new ByteSourceArray(thumbnail), null);
+          if (size.width >= minWidth) {
+            Metrics.increment("preview.exif");
+            return thumbnail;
+          }
+        } catch (ImageReadException e) {
+          // not a JPEG thumbnail
+        }
+      }
+
+      SofnSegment sofn = segments.getSofnSegment();
+      int scale = 1;
+      for (int candidate : SCALES) {
+        if (sofn != null && (sofn.width + candidate - 1) / candidate >= minWidth) {
+          scale = candidate;
+          break;
+        }
+      }
+      Map<String, Object> params = new HashMap<>();
+      params.put(JpegConstants.PARAM_KEY_JPEG_SCALE, scale);
+      BufferedImage image;
+      try {
+        image = parser.getBufferedImage(byteSource, params);
+      } catch (ImageReadException e) {
+        // a JPEG process the decoder doesn't support
+        image = ImageIO.read(photo.toFile());
+        scale = 1;
+        if (image == null) {
+          throw e;
+        }
+      }
+      Metrics.increment(scale == 1 ? "preview.full" : "preview.scaled");
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(resize(image, minWidth), "jpg", out);
+      return out.toByteArray();
+    } finally {
+      byteSource.close();
+    }
+  }
+
+  // halves the image until it's less than twice minWidth, then scales it
+  // to minWidth, so that bilinear filtering doesn't skip pixels
+  static BufferedImage resize(BufferedImage image, int minWidth) {
+    while (minWidth > 0 && image.getWidth() > minWidth) {
+      int width = Math.max(minWidth, image.getWidth() / 2);
+      int height = Math.max(1, (int) ((long) image.getHeight() * width / image.getWidth()));
+      BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = scaled.createGraphics();
+      try {
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+      } finally {
+        g.dispose();
+      }
+      image = scaled;
+    }
+    return image;
+  }
+
+  private byte[] get(String name) throws IOException {
+    synchronized (this) {
+      if (entries.get(name) == null) {
+        return null;
+      }
+    }
+    Path file = dir.resolve(name);
+    try {
+      byte[] bytes = Files.readAllBytes(file);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return bytes;
+    } catch (NoSuchFileException e) {
+      synchronized (this) {
+        Long size = entries.remove(name);
+        if (size != null) {
+          totalBytes -= size;
+        }
+      }
+      return null;
+    }
+  }
+
+  private void put(String name, byte[] preview) throws IOException {
+    Path tmp = Files.createTempFile(dir, name, ".tmp");
+    Files.write(tmp, preview);
+    Path file = dir.resolve(name);
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    List<String> evicted = new ArrayList<>();
+    synchronized (this) {
+      Long previous = entries.put(name, (long) preview.length);
+      totalBytes += preview.length - (previous == null ? 0 : previous);
+      Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        Map.Entry<String, Long> eldest = it.next();
+        if (eldest.getKey().equals(name)) {
+          continue;
+        }
+        totalBytes -= eldest.getValue();
+        evicted.add(eldest.getKey());
+        it.remove();
+      }
+    }
+    for (String old : evicted) {
+      Files.deleteIfExists(dir.resolve(old));
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+}
@@ -0,0 +1,45 @@
+package org.rv.picmgr2;
+
+/**
+ * Token bucket: permits are refilled continuously at the given rate, up to a
+ * burst of one second worth of permits.
+ */
+public class RateLimiter {
+
+  private final double permitsPerSecond;
+  private final double maxPermits;
+  private double permits;
+  private long lastRefill;
+
+  public RateLimiter(double permitsPerSecond) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("Invalid rate : " + permitsPerSecond);
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.maxPermits = Math.max(1, permitsPerSecond);
+    this.permits = maxPermits;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * Takes one permit, waiting for it if the bucket is empty.
+   */
+  public void acquire() throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      refill();
+      permits -= 1;
+      // a negative balance is the debt the caller has to wait for
+      waitNanos = permits >= 0 ? 0 : (long) (-permits / permitsPerSecond * 1e9);
+    }
+    if (waitNanos > 0) {
+      Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    permits = Math.min(maxPermits, permits + (now - lastRefill) * permitsPerSecond / 1e9);
+    lastRefill = now;
+  }
+}
@@ -14,6 +14,11 @@ public class RvLogger {
     System.out.println("[**EXIT**] " + msg);
     
   }
+
+  public static void throughput(String stage, int count, long startNanos) {
+    long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1000000);
+    info("[stage:" + stage + "] " + count + " files in " + elapsedMs + " ms (" + (count * 1000L / elapsedMs) + " files/s)");
+  }
 	
 	
 }
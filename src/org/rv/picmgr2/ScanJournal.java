@@ -0,0 +1,205 @@
+package org.rv.picmgr2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.imaging.common.RationalNumber;
+import org.apache.commons.imaging.formats.tiff.TiffImageMetadata.GPSInfo;
+
+/**
+ * Remembers the metadata extracted from each source file, keyed by its path
+ * and validated by size and mtime, so that unchanged files are not parsed
+ * again on the next run. Only the files seen by the current scan are saved,
+ * so the journal doesn't keep every card ever imported.
+ */
+public class ScanJournal {
+
+  public static final String JOURNAL_FILE = ".rvpicmgr.journal";
+
+  private static final int MAGIC = 0x52564a4e; // "RVJN"
+  private static final int VERSION = 1;
+
+  static final class Record {
+    final long size;
+    final long mtime;
+    final boolean gpsRead;
+    final boolean ok;
+    final long takenOn;
+    final GPSInfo gps;
+
+    Record(long size, long mtime, boolean gpsRead, boolean ok, long takenOn, GPSInfo gps) {
+      this.size = size;
+      this.mtime = mtime;
+      this.gpsRead = gpsRead;
+      this.ok = ok;
+      this.takenOn = takenOn;
+      this.gps = gps;
+    }
+  }
+
+  private final Path file;
+  private final Map<String, Record> records = new ConcurrentHashMap<>();
+  private final Set<String> seen = ConcurrentHashMap.newKeySet();
+  private volatile boolean dirty = false;
+
+  private ScanJournal(Path file) {
+    this.file = file;
+  }
+
+  public static ScanJournal open(Path file) {
+    ScanJournal journal = new ScanJournal(file);
+    if (Files.exists(file)) {
+      try {
+        journal.load();
+      } catch (IOException | RuntimeException e) {
+        RvLogger.warn("Scan journal unreadable, starting a new one " + file, e);
+        journal.records.clear();
+      }
+    }
+    RvLogger.info(journal.records.size() + " files in scan journal");
+    return journal;
+  }
+
+  /**
+   * Marks a file as part of the current scan, so that its record is kept.
+   */
+  public void seen(Path path) {
+    seen.add(key(path));
+  }
+
+  /**
+   * Applies the journaled metadata to the photo and returns the stored
+   * extraction result, or null when the file changed or was never seen.
+   */
+  public Boolean apply(PhotoInfo photo, long size, long mtime, boolean processGps) {
+    Record record = records.get(key(photo.getSourcePath()));
+    if (record == null || record.size != size || record.mtime != mtime || (processGps && !record.gpsRead)) {
+      return null;
+    }
+    if (processGps) {
+      photo.setGpsInfo(record.gps);
+    }
+    if (record.takenOn != DateUtil.NO_DATE) {
+      photo.setTakenOn(record.takenOn);
+    }
+    return record.ok;
+  }
+
+  public void record(PhotoInfo photo, long size, long mtime, boolean processGps, boolean ok) {
+    long takenOn = photo.takenOn;
+    records.put(key(photo.getSourcePath()), new Record(size, mtime, processGps, ok, takenOn, processGps ? photo.getGpsInfo() : null));
+    dirty = true;
+  }
+
+  public void save() throws IOException {
+    Iterator<String> keys = records.keySet().iterator();
+    while (keys.hasNext()) {
+      if (!seen.contains(keys.next())) {
+        keys.remove();
+        dirty = true;
+      }
+    }
+    if (!dirty || Files.notExists(file.toAbsolutePath().getParent())) {
+      return;
+    }
+    // extraction may still be running after a cancel, write a stable copy
+    Map<String, Record> snapshot = new HashMap<>(records);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, Record> e : snapshot.entrySet()) {
+        Record record = e.getValue();
+        writeString(out, e.getKey());
+        out.writeLong(record.size);
+        out.writeLong(record.mtime);
+        out.writeBoolean(record.gpsRead);
+        out.writeBoolean(record.ok);
+        out.writeLong(record.takenOn);
+        GPSInfo gps = record.gps;
+        out.writeBoolean(gps != null);
+        if (gps != null) {
+          writeString(out, gps.latitudeRef);
+          writeString(out, gps.longitudeRef);
+          writeRational(out, gps.latitudeDegrees);
+          writeRational(out, gps.latitudeMinutes);
+          writeRational(out, gps.latitudeSeconds);
+          writeRational(out, gps.longitudeDegrees);
+          writeRational(out, gps.longitudeMinutes);
+          writeRational(out, gps.longitudeSeconds);
+        }
+      }
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    dirty = false;
+  }
+
+  private void load() throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a scan journal: " + file);
+      }
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        String key = readString(buffer);
+        long size = buffer.getLong();
+        long mtime = buffer.getLong();
+        boolean gpsRead = buffer.get() != 0;
+        boolean ok = buffer.get() != 0;
+        long takenOn = buffer.getLong();
+        GPSInfo gps = null;
+        if (buffer.get() != 0) {
+          gps = new GPSInfo(readString(buffer), readString(buffer), readRational(buffer), readRational(buffer),
+              readRational(buffer), readRational(buffer), readRational(buffer), readRational(buffer));
+        }
+        records.put(key, new Record(size, mtime, gpsRead, ok, takenOn, gps));
+      }
+    }
+  }
+
+  private static String key(Path path) {
+    return path.toAbsolutePath().normalize().toString();
+  }
+
+  private static void writeRational(DataOutputStream out, RationalNumber value) throws IOException {
+    out.writeInt(value.numerator);
+    out.writeInt(value.divisor);
+  }
+
+  private static RationalNumber readRational(ByteBuffer buffer) {
+    return new RationalNumber(buffer.getInt(), buffer.getInt());
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
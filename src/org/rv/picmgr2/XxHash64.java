@@ -0,0 +1,116 @@
+package org.rv.picmgr2;
+
+/**
+ * Streaming XXH64 (see the xxHash specification), used to fingerprint file
+ * contents.
+ */
+public final class XxHash64 {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private final long seed;
+  private long v1;
+  private long v2;
+  private long v3;
+  private long v4;
+  private long total = 0;
+  private final byte[] buffer = new byte[32];
+  private int buffered = 0;
+
+  public XxHash64(long seed) {
+    this.seed = seed;
+    v1 = seed + PRIME1 + PRIME2;
+    v2 = seed + PRIME2;
+    v3 = seed;
+    v4 = seed - PRIME1;
+  }
+
+  public void update(byte[] b, int off, int len) {
+    total += len;
+    if (buffered + len < 32) {
+      System.arraycopy(b, off, buffer, buffered, len);
+      buffered += len;
+      return;
+    }
+    int end = off + len;
+    if (buffered > 0) {
+      int fill = 32 - buffered;
+      System.arraycopy(b, off, buffer, buffered, fill);
+      stripe(buffer, 0);
+      off += fill;
+      buffered = 0;
+    }
+    for (; off <= end - 32; off += 32) {
+      stripe(b, off);
+    }
+    buffered = end - off;
+    System.arraycopy(b, off, buffer, 0, buffered);
+  }
+
+  private void stripe(byte[] b, int off) {
+    v1 = round(v1, readLong(b, off));
+    v2 = round(v2, readLong(b, off + 8));
+    v3 = round(v3, readLong(b, off + 16));
+    v4 = round(v4, readLong(b, off + 24));
+  }
+
+  public long digest() {
+    long h;
+    if (total >= 32) {
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = merge(h, v1);
+      h = merge(h, v2);
+      h = merge(h, v3);
+      h = merge(h, v4);
+    } else {
+      h = seed + PRIME5;
+    }
+    h += total;
+
+    int off = 0;
+    for (; off <= buffered - 8; off += 8) {
+      h ^= round(0, readLong(buffer, off));
+      h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+    }
+    if (off <= buffered - 4) {
+      h ^= (readInt(buffer, off) & 0xffffffffL) * PRIME1;
+      h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+      off += 4;
+    }
+    for (; off < buffered; off++) {
+      h ^= (buffer[off] & 0xff) * PRIME5;
+      h = Long.rotateLeft(h, 11) * PRIME1;
+    }
+
+    h ^= h >>> 33;
+    h *= PRIME2;
+    h ^= h >>> 29;
+    h *= PRIME3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * PRIME1;
+  }
+
+  private static long merge(long acc, long v) {
+    acc ^= round(0, v);
+    return acc * PRIME1 + PRIME4;
+  }
+
+  private static long readLong(byte[] b, int off) {
+    return (b[off] & 0xffL) | (b[off + 1] & 0xffL) << 8 | (b[off + 2] & 0xffL) << 16 | (b[off + 3] & 0xffL) << 24
+        | (b[off + 4] & 0xffL) << 32 | (b[off + 5] & 0xffL) << 40 | (b[off + 6] & 0xffL) << 48 | (b[off + 7] & 0xffL) << 56;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+  }
+}